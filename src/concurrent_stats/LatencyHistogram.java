@@ -0,0 +1,127 @@
+package concurrent_stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-memory histogram of non-negative values with log-linear buckets, in the style of HdrHistogram.
+ * <p>
+ * Values below 2^precision get a bucket each. Above that every power of two is split into
+ * 2^precision equal buckets, so a reported quantile is within 2^-(precision + 1) of the
+ * recorded value, relative to it. Recording is a single atomic increment, so any number of
+ * threads can record at once, and histograms with the same precision can be merged.
+ */
+public class LatencyHistogram {
+    public static final int DEFAULT_PRECISION = 6;
+
+    private final int precision;
+    private final AtomicLongArray counts;
+
+    public LatencyHistogram() {
+        this(DEFAULT_PRECISION);
+    }
+
+    public LatencyHistogram(int precision) {
+        if (precision < 1 || precision > 14)
+            throw new IllegalArgumentException("Precision must be between 1 and 14 bits: " + precision);
+        this.precision = precision;
+        this.counts = new AtomicLongArray(bucketCount(precision));
+    }
+
+    static int bucketCount(int precision) {
+        // one linear range below 2^precision, then one range per remaining power of two
+        return (64 - precision) << precision;
+    }
+
+    static int bucketIndex(long value, int precision) {
+        if (value < (1L << precision)) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - precision;
+        long subBucket = (value >>> shift) - (1L << precision);
+        return ((shift + 1) << precision) + (int) subBucket;
+    }
+
+    static long bucketLowerBound(int index, int precision) {
+        int range = index >>> precision;
+        long subBucket = index & ((1 << precision) - 1);
+        if (range == 0) return subBucket;
+        return ((1L << precision) + subBucket) << (range - 1);
+    }
+
+    static long bucketWidth(int index, int precision) {
+        int range = index >>> precision;
+        return range == 0 ? 1 : 1L << (range - 1);
+    }
+
+    public void record(long value) {
+        if (value < 0) throw new IllegalArgumentException("Negative value: " + value);
+        counts.incrementAndGet(bucketIndex(value, precision));
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public void merge(LatencyHistogram other) {
+        if (other.precision != precision)
+            throw new IllegalArgumentException("Cannot merge histograms with different precision");
+        for (int i = 0; i < counts.length(); i++) {
+            long count = other.counts.get(i);
+            if (count != 0) counts.addAndGet(i, count);
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, precision);
+    }
+
+    /**
+     * Bucket counts copied at one point; the total is computed from the same copy.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final int precision;
+        private final long totalCount;
+
+        Snapshot(long[] counts, int precision) {
+            this.counts = counts;
+            this.precision = precision;
+            long total = 0;
+            for (long count : counts) total += count;
+            this.totalCount = total;
+        }
+
+        public long getTotalCount() {
+            return totalCount;
+        }
+
+        /**
+         * Value at the given quantile (0.5 for the median, 0.99 for p99), or 0 when empty.
+         */
+        public long quantile(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0)
+                throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+            if (totalCount == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(quantile * totalCount));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return bucketLowerBound(i, precision) + bucketWidth(i, precision) / 2;
+            }
+            return bucketLowerBound(counts.length - 1, precision);
+        }
+
+        public Snapshot merge(Snapshot other) {
+            if (other.precision != precision)
+                throw new IllegalArgumentException("Cannot merge histograms with different precision");
+            long[] merged = counts.clone();
+            for (int i = 0; i < merged.length; i++) {
+                merged[i] += other.counts[i];
+            }
+            return new Snapshot(merged, precision);
+        }
+    }
+}
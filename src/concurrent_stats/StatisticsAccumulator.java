@@ -0,0 +1,148 @@
+package concurrent_stats;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Count, sum, min and max of a stream of values, updated from many threads without a shared lock.
+ * <p>
+ * Like {@link java.util.concurrent.atomic.LongAdder}, writes are spread over several cells and the
+ * cells are combined when the statistics are read. Each cell is guarded by a sequence number:
+ * a writer claims a cell by moving its sequence from even to odd and moves on to another cell
+ * if the claim fails, so writers never wait for each other. Readers retry a cell until they see
+ * the same even sequence before and after reading it, which means count, sum, min and max in a
+ * {@link Snapshot} always describe the same set of values.
+ */
+public class StatisticsAccumulator {
+    private static final int MAX_CELLS = 64;
+
+    private final Cell[] cells;
+    private final int mask;
+
+    public StatisticsAccumulator() {
+        int size = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+        cells = new Cell[Math.min(size, MAX_CELLS)];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = new Cell();
+        }
+        mask = cells.length - 1;
+    }
+
+    public void add(long value) {
+        int index = hash(Thread.currentThread().threadId());
+        while (true) {
+            Cell cell = cells[index & mask];
+            if (cell.tryAdd(value)) return;
+            index++;
+        }
+    }
+
+    public Snapshot snapshot() {
+        long count = 0, sum = 0, min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        for (Cell cell : cells) {
+            while (true) {
+                int seq = (int) SEQ.getAcquire(cell);
+                if ((seq & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+                long c = cell.count, s = cell.sum, lo = cell.min, hi = cell.max;
+                VarHandle.acquireFence();
+                if ((int) SEQ.getVolatile(cell) != seq) continue;
+                count += c;
+                sum += s;
+                min = Math.min(min, lo);
+                max = Math.max(max, hi);
+                break;
+            }
+        }
+        return new Snapshot(count, sum, min, max);
+    }
+
+    private static int hash(long threadId) {
+        long h = threadId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    // A cell's fields sit between two runs of unused longs, so cells written by different
+    // threads do not share a cache line. Superclass fields are laid out first, which keeps
+    // the JVM from reordering the padding next to the values, as it may within one class.
+    private static class CellPadding {
+        long p01, p02, p03, p04, p05, p06, p07, p08;
+    }
+
+    private static class CellValues extends CellPadding {
+        volatile int seq;
+        long count;
+        long sum;
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+    }
+
+    private static final class Cell extends CellValues {
+        long p11, p12, p13, p14, p15, p16, p17, p18;
+
+        boolean tryAdd(long value) {
+            int current = seq;
+            if ((current & 1) != 0 || !SEQ.compareAndSet(this, current, current + 1)) return false;
+            count++;
+            sum += value;
+            if (value < min) min = value;
+            if (value > max) max = value;
+            SEQ.setRelease(this, current + 2);
+            return true;
+        }
+    }
+
+    private static final VarHandle SEQ;
+
+    static {
+        try {
+            SEQ = MethodHandles.lookup().findVarHandle(CellValues.class, "seq", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Statistics of all values added before the snapshot was taken.
+     * Min and max are only meaningful when the count is not zero.
+     */
+    public static class Snapshot {
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+
+        Snapshot(long count, long sum, long min, long max) {
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getAverage() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        public boolean isEmpty() {
+            return count == 0;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package concurrent_stats;
+
+import java.util.ArrayList;
+import java.util.LongSummaryStatistics;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+interface Statistics {
+    void add(long value);
+
+    long count();
+
+    long sum();
+}
+
+class LockedStatistics implements Statistics {
+    private final LongSummaryStatistics stats = new LongSummaryStatistics();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Override
+    public void add(long value) {
+        lock.writeLock().lock();
+        try {
+            stats.accept(value);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long count() {
+        lock.readLock().lock();
+        try {
+            return stats.getCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long sum() {
+        lock.readLock().lock();
+        try {
+            return stats.getSum();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
+
+class StripedStatistics implements Statistics {
+    private final StatisticsAccumulator accumulator = new StatisticsAccumulator();
+
+    @Override
+    public void add(long value) {
+        accumulator.add(value);
+    }
+
+    @Override
+    public long count() {
+        return accumulator.snapshot().getCount();
+    }
+
+    @Override
+    public long sum() {
+        return accumulator.snapshot().getSum();
+    }
+}
+
+public class StatisticsAccumulatorBenchmark {
+    private static final int TOTAL_ADDS = 8_000_000;
+
+    interface Factory {
+        Statistics create();
+    }
+
+    // adds TOTAL_ADDS values split over the writer threads, returns adds per second
+    static double run(Factory factory, int writers) throws InterruptedException, ExecutionException {
+        Statistics statistics = factory.create();
+        int perWriter = TOTAL_ADDS / writers;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            tasks.add(() -> {
+                for (int i = 1; i <= perWriter; i++) statistics.add(i);
+                return null;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        long start = System.nanoTime();
+        try {
+            for (Future<Void> f : executor.invokeAll(tasks)) f.get();
+        } finally {
+            executor.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long expectedCount = (long) perWriter * writers;
+        long expectedSum = (long) perWriter * (perWriter + 1) / 2 * writers;
+        if (statistics.count() != expectedCount || statistics.sum() != expectedSum) {
+            throw new RuntimeException("ERROR: Lost updates: count " + statistics.count() + ", sum " + statistics.sum());
+        }
+        return expectedCount * 1_000_000_000.0 / elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        // warm up both paths before measuring
+        run(LockedStatistics::new, 4);
+        run(StripedStatistics::new, 4);
+
+        System.out.printf("%8s %18s %18s%n", "writers", "rw-lock adds/s", "striped adds/s");
+        for (int writers = 1; writers <= 64; writers *= 2) {
+            double locked = run(LockedStatistics::new, writers);
+            double striped = run(StripedStatistics::new, writers);
+            System.out.printf("%8d %,18.0f %,18.0f%n", writers, locked, striped);
+        }
+    }
+}
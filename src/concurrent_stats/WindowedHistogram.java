@@ -0,0 +1,84 @@
+package concurrent_stats;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Latency histogram over a sliding time window, kept as a ring of per-interval histograms.
+ * <p>
+ * A window is the partly filled current interval plus as many whole intervals before it as
+ * the window is long, so it always covers at least its full length. Short intervals keep that
+ * overshoot small. A slot is replaced by a fresh histogram the first time a value is recorded
+ * in a new interval, and a value that raced with the replacement is recorded again.
+ */
+public class WindowedHistogram {
+    private final long intervalMillis;
+    private final int precision;
+    private final LongSupplier clock;
+    private final AtomicReferenceArray<Slot> slots;
+
+    private static class Slot {
+        final long interval;
+        final LatencyHistogram histogram;
+
+        Slot(long interval, int precision) {
+            this.interval = interval;
+            this.histogram = new LatencyHistogram(precision);
+        }
+    }
+
+    /**
+     * Keeps the last 15 minutes in ten second intervals.
+     */
+    public WindowedHistogram() {
+        this(Duration.ofSeconds(10), 90, LatencyHistogram.DEFAULT_PRECISION, System::currentTimeMillis);
+    }
+
+    public WindowedHistogram(Duration interval, int intervals, int precision, LongSupplier clockMillis) {
+        this.intervalMillis = interval.toMillis();
+        this.precision = precision;
+        this.clock = clockMillis;
+        // one extra slot for the current interval, next to the whole ones a full window needs
+        this.slots = new AtomicReferenceArray<>(intervals + 1);
+    }
+
+    public void record(long value) {
+        while (true) {
+            long interval = clock.getAsLong() / intervalMillis;
+            int index = (int) (interval % slots.length());
+            Slot slot = slots.get(index);
+            while (slot == null || slot.interval != interval) {
+                // the ring already moved a full turn past this interval
+                if (slot != null && slot.interval > interval) return;
+                Slot fresh = new Slot(interval, precision);
+                if (slots.compareAndSet(index, slot, fresh)) {
+                    slot = fresh;
+                } else {
+                    slot = slots.get(index);
+                }
+            }
+            slot.histogram.record(value);
+            // a slot replaced while we recorded is gone from every view, so record in its successor
+            if (slots.get(index) == slot) return;
+        }
+    }
+
+    /**
+     * Values recorded in the current interval and in the whole intervals before it that cover the window.
+     */
+    public LatencyHistogram.Snapshot snapshot(Duration window) {
+        long whole = (window.toMillis() + intervalMillis - 1) / intervalMillis;
+        long intervals = Math.max(1, Math.min(slots.length() - 1, whole));
+        long current = clock.getAsLong() / intervalMillis;
+        LatencyHistogram.Snapshot result =
+                new LatencyHistogram.Snapshot(new long[LatencyHistogram.bucketCount(precision)], precision);
+        for (int i = 0; i < slots.length(); i++) {
+            Slot slot = slots.get(i);
+            if (slot != null && slot.interval >= current - intervals && slot.interval <= current) {
+                result = result.merge(slot.histogram.snapshot());
+            }
+        }
+        return result;
+    }
+}
@@ -1,24 +1,520 @@
 package e34;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
 
-class TextProcessor {  Map<String, Integer> allWordsMap;
-    List<Map<String, Integer>> wordsByDocumentsMaps;
-    List<String> rawTexts;
+/**
+ * Term counts of one document, as ascending term ids with the count of each.
+ */
+class SparseVector {
+    final int[] terms;
+    final int[] counts;
+    final double norm;
+
+    SparseVector(int[] terms, int[] counts) {
+        this.terms = terms;
+        this.counts = counts;
+        long normSquared = 0;
+        for (int count : counts) normSquared += (long) count * count;
+        this.norm = Math.sqrt(normSquared);
+    }
+
+    /**
+     * Counts the first {@code length} term ids; sorts them in place.
+     */
+    static SparseVector fromTermIds(int[] termIds, int length) {
+        Arrays.sort(termIds, 0, length);
+        int distinct = 0;
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || termIds[i] != termIds[i - 1]) distinct++;
+        }
+        int[] terms = new int[distinct];
+        int[] counts = new int[distinct];
+        int d = -1;
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || termIds[i] != termIds[i - 1]) terms[++d] = termIds[i];
+            counts[d]++;
+        }
+        return new SparseVector(terms, counts);
+    }
+
+    int size() {
+        return terms.length;
+    }
+
+    double cosine(SparseVector other) {
+        return dot(other) / (norm * other.norm);
+    }
+
+    long dot(SparseVector other) {
+        long dot = 0;
+        int i = 0, j = 0;
+        while (i < terms.length && j < other.terms.length) {
+            if (terms[i] < other.terms[j]) i++;
+            else if (terms[i] > other.terms[j]) j++;
+            else dot += (long) counts[i++] * other.counts[j++];
+        }
+        return dot;
+    }
+}
+
+class SimilarPair {
+    final int first;
+    final int second;
+    final double similarity;
+
+    SimilarPair(int first, int second, double similarity) {
+        this.first = first;
+        this.second = second;
+        this.similarity = similarity;
+    }
+
+    // higher similarity first, then the pair an i, j scan over the documents would reach first
+    static final Comparator<SimilarPair> BEST_FIRST = Comparator
+            .comparingDouble((SimilarPair p) -> -p.similarity)
+            .thenComparingInt(p -> p.first)
+            .thenComparingInt(p -> p.second);
+}
+
+/**
+ * The k best pairs offered so far; only pairs with a positive similarity are kept.
+ */
+class TopPairs {
+    private final int k;
+    // worst pair at the head
+    private final PriorityQueue<SimilarPair> heap;
+
+    TopPairs(int k) {
+        this.k = k;
+        this.heap = new PriorityQueue<>(Math.max(1, k), SimilarPair.BEST_FIRST.reversed());
+    }
+
+    /**
+     * Similarity of the k-th best pair, or 0 while fewer than k pairs are kept.
+     */
+    double threshold() {
+        if (k <= 0) return 0;
+        return heap.size() < k ? 0 : heap.peek().similarity;
+    }
+
+    void offer(int first, int second, double similarity) {
+        if (similarity <= 0 || k <= 0) return;
+        if (heap.size() == k && similarity < heap.peek().similarity) return;
+        for (SimilarPair kept : heap) {
+            // a pair can be found through more than one term
+            if (kept.first == first && kept.second == second) return;
+        }
+        SimilarPair pair = new SimilarPair(first, second, similarity);
+        if (heap.size() < k) {
+            heap.add(pair);
+        } else if (SimilarPair.BEST_FIRST.compare(pair, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(pair);
+        }
+    }
+
+    void addAll(TopPairs other) {
+        for (SimilarPair pair : other.heap) offer(pair.first, pair.second, pair.similarity);
+    }
+
+    List<SimilarPair> best() {
+        List<SimilarPair> best = new ArrayList<>(heap);
+        best.sort(SimilarPair.BEST_FIRST);
+        return best;
+    }
+}
+
+/**
+ * Exact top-k cosine similarity over all document pairs, through an inverted index so that
+ * only pairs sharing a term are ever looked at.
+ * <p>
+ * Terms are ranked by document frequency. A first pass indexes only the rarest terms, whose
+ * postings together hold at most RARE_PAIRS_PER_ENTRY pairs per index entry, and finds the
+ * k best pairs among the documents sharing one of them. That sets a threshold for the second
+ * pass, which indexes every document under its prefix: its terms from the rarest up, leaving
+ * out the longest run of the most common ones whose norm stays below the threshold. Two
+ * documents that share no term in the prefix of one of them are less similar than that,
+ * so only documents found through the prefix postings can still make the top k.
+ * <p>
+ * Each pass adds up the indexed part of the dot product with every later document, and only
+ * scores a pair exactly when that part and a bound on the rest reach the k-th best similarity
+ * found so far. Documents are handed out to the workers in small batches.
+ */
+class SimilarityIndex {
+    private static final long RARE_PAIRS_PER_ENTRY = 1;
+    private static final int BATCH = 64;
+    // keeps rounding in the bounds from pruning a pair that ties the threshold
+    private static final double EPSILON = 1e-9;
+
+    private final List<SparseVector> documents;
+    private final int vocabularySize;
+    private final int[] frequency;
+    private final boolean[] common;
+    // norm over the common terms, as a fraction of the document's norm
+    private final double[] commonNorm;
+
+    interface TermFilter {
+        boolean indexes(int document, int term);
+    }
+
+    /**
+     * The documents indexed under each term, in ascending order, with the term's count in each.
+     */
+    private static class Postings {
+        final int[] start;
+        final int[] docs;
+        final int[] counts;
+
+        Postings(List<SparseVector> documents, int vocabularySize, TermFilter filter) {
+            start = new int[vocabularySize + 1];
+            for (int d = 0; d < documents.size(); d++) {
+                for (int term : documents.get(d).terms) {
+                    if (filter.indexes(d, term)) start[term + 1]++;
+                }
+            }
+            for (int t = 0; t < vocabularySize; t++) start[t + 1] += start[t];
+            docs = new int[start[vocabularySize]];
+            counts = new int[docs.length];
+            int[] next = Arrays.copyOf(start, vocabularySize);
+            for (int d = 0; d < documents.size(); d++) {
+                SparseVector document = documents.get(d);
+                for (int i = 0; i < document.size(); i++) {
+                    int term = document.terms[i];
+                    if (!filter.indexes(d, term)) continue;
+                    counts[next[term]] = document.counts[i];
+                    docs[next[term]++] = d;
+                }
+            }
+        }
+
+        // the first posting of a term after the given document
+        int after(int term, int document) {
+            int p = Arrays.binarySearch(docs, start[term], start[term + 1], document);
+            return p >= 0 ? p + 1 : -p - 1;
+        }
+    }
+
+    SimilarityIndex(List<SparseVector> documents, int vocabularySize) {
+        this.documents = documents;
+        this.vocabularySize = vocabularySize;
+        frequency = new int[vocabularySize];
+        long entries = 0;
+        for (SparseVector document : documents) {
+            for (int term : document.terms) frequency[term]++;
+            entries += document.size();
+        }
+
+        // the rarest terms are rare until their pairs exceed the budget
+        common = new boolean[vocabularySize];
+        long budget = RARE_PAIRS_PER_ENTRY * entries;
+        long pairs = 0;
+        for (int t : byFrequency(IntStream.range(0, vocabularySize).toArray())) {
+            pairs += (long) frequency[t] * (frequency[t] - 1) / 2;
+            common[t] = pairs > budget;
+        }
+
+        commonNorm = new double[documents.size()];
+        for (int d = 0; d < documents.size(); d++) {
+            SparseVector document = documents.get(d);
+            long squared = 0;
+            for (int i = 0; i < document.size(); i++) {
+                if (common[document.terms[i]]) squared += (long) document.counts[i] * document.counts[i];
+            }
+            commonNorm[d] = squared == 0 ? 0 : Math.sqrt(squared) / document.norm;
+        }
+    }
+
+    // rarest first, ties by term id
+    private int[] byFrequency(int[] terms) {
+        long[] keys = new long[terms.length];
+        for (int i = 0; i < terms.length; i++) keys[i] = (long) frequency[terms[i]] << 32 | terms[i];
+        Arrays.sort(keys);
+        int[] sorted = new int[terms.length];
+        for (int i = 0; i < terms.length; i++) sorted[i] = (int) keys[i];
+        return sorted;
+    }
+
+    private double similarity(int a, int b) {
+        return documents.get(a).cosine(documents.get(b));
+    }
+
+    List<SimilarPair> topPairs(int k) throws InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            TopPairs found = new TopPairs(k);
+            Postings rare = new Postings(documents, vocabularySize, (document, term) -> !common[term]);
+            found.addAll(run(executor, threads, k, () -> new Pass(k, 0, rare, commonNorm, commonNorm)));
+
+            double threshold = found.threshold();
+            double[] suffixNorm = new double[documents.size()];
+            boolean[][] prefix = prefixes(threshold, suffixNorm);
+            Postings prefixes = new Postings(documents, vocabularySize,
+                    (document, term) -> prefix[document][Arrays.binarySearch(documents.get(document).terms, term)]);
+            // the probing document brings all of its terms, so only the indexed one has a rest
+            double[] noRest = new double[documents.size()];
+            Arrays.fill(noRest, 1);
+            found.addAll(run(executor, threads, k, () -> new Pass(k, threshold, prefixes, noRest, suffixNorm)));
+            return found.best();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // for every document, which of its terms make up its prefix, and the norm of the rest
+    private boolean[][] prefixes(double threshold, double[] suffixNorm) {
+        boolean[][] prefix = new boolean[documents.size()][];
+        for (int d = 0; d < documents.size(); d++) {
+            SparseVector document = documents.get(d);
+            prefix[d] = new boolean[document.size()];
+            Arrays.fill(prefix[d], true);
+            int[] ranked = byFrequency(document.terms);
+            long squared = 0;
+            for (int r = ranked.length - 1; r >= 0; r--) {
+                int i = Arrays.binarySearch(document.terms, ranked[r]);
+                long withTerm = squared + (long) document.counts[i] * document.counts[i];
+                if (Math.sqrt(withTerm) / document.norm >= threshold - EPSILON) break;
+                squared = withTerm;
+                prefix[d][i] = false;
+            }
+            suffixNorm[d] = squared == 0 ? 0 : Math.sqrt(squared) / document.norm;
+        }
+        return prefix;
+    }
+
+    // every worker takes batches of documents until none are left
+    private TopPairs run(ExecutorService executor, int threads, int k, Supplier<Pass> passes) throws InterruptedException {
+        int n = documents.size();
+        AtomicInteger nextBatch = new AtomicInteger();
+        List<Callable<TopPairs>> workers = new ArrayList<>();
+        for (int w = 0; w < threads; w++) {
+            workers.add(() -> {
+                Pass pass = passes.get();
+                for (int from; (from = nextBatch.getAndAdd(BATCH)) < n; ) {
+                    for (int d = from; d < Math.min(n, from + BATCH); d++) pass.visit(d);
+                }
+                return pass.found;
+            });
+        }
+        try {
+            TopPairs merged = new TopPairs(k);
+            for (Future<TopPairs> f : executor.invokeAll(workers)) merged.addAll(f.get());
+            return merged;
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * One worker's walk over a set of postings. Whatever the postings leave out of the dot
+     * product is at most the product of the two documents' norms over the terms left out.
+     */
+    private class Pass {
+        private final TopPairs found;
+        private final double threshold;
+        private final Postings postings;
+        private final double[] probeRest;
+        private final double[] indexedRest;
+        private final long[] partialDot = new long[documents.size()];
+        private final long[] sharedSquared = new long[documents.size()];
+        private int[] touched = new int[16];
+
+        Pass(int k, double threshold, Postings postings, double[] probeRest, double[] indexedRest) {
+            this.found = new TopPairs(k);
+            this.threshold = threshold;
+            this.postings = postings;
+            this.probeRest = probeRest;
+            this.indexedRest = indexedRest;
+        }
+
+        void visit(int i) {
+            SparseVector document = documents.get(i);
+            int touchedCount = 0;
+            for (int t = 0; t < document.size(); t++) {
+                int term = document.terms[t];
+                for (int p = postings.after(term, i); p < postings.start[term + 1]; p++) {
+                    int j = postings.docs[p];
+                    if (partialDot[j] == 0) {
+                        if (touchedCount == touched.length) touched = Arrays.copyOf(touched, touchedCount * 2);
+                        touched[touchedCount++] = j;
+                    }
+                    partialDot[j] += (long) document.counts[t] * postings.counts[p];
+                    sharedSquared[j] += (long) document.counts[t] * document.counts[t];
+                }
+            }
+            for (int c = 0; c < touchedCount; c++) {
+                int j = touched[c];
+                // the probing document's terms already counted are not in the rest either
+                double unshared = Math.sqrt(Math.max(0, 1 - sharedSquared[j] / (document.norm * document.norm)));
+                double rest = Math.min(probeRest[i], unshared + EPSILON) * indexedRest[j];
+                double bound = partialDot[j] / (document.norm * documents.get(j).norm) + rest;
+                partialDot[j] = 0;
+                sharedSquared[j] = 0;
+                if (bound >= Math.max(threshold, found.threshold()) - EPSILON) found.offer(i, j, similarity(i, j));
+            }
+        }
+    }
+}
+
+/**
+ * Approximate search for the most similar pairs: MinHash signatures over the set of terms of
+ * every document, cut into bands that are hashed into buckets.
+ * <p>
+ * Two documents agree on one signature value with probability equal to the Jaccard similarity
+ * s of their term sets, so they share a bucket in at least one band with probability
+ * 1 - (1 - s^rows)^bands. More bands or fewer rows find less similar pairs at the cost of more
+ * candidates. Every candidate is scored with the exact cosine similarity, so a pair can be
+ * missed but never reported with a wrong similarity.
+ */
+class MinHashLsh {
+    final int bands;
+    final int rows;
+    // hash function f maps a term's 64-bit hash x to the top 32 bits of x * multipliers[f] + addends[f]
+    private final long[] multipliers;
+    private final long[] addends;
+
+    MinHashLsh(int bands, int rows, long seed) {
+        if (bands < 1 || rows < 1) throw new IllegalArgumentException("Bands and rows must be positive: " + bands + ", " + rows);
+        this.bands = bands;
+        this.rows = rows;
+        Random random = new Random(seed);
+        multipliers = new long[bands * rows];
+        addends = new long[bands * rows];
+        for (int f = 0; f < multipliers.length; f++) {
+            multipliers[f] = random.nextLong() | 1;
+            addends[f] = random.nextLong();
+        }
+    }
+
+    /**
+     * Probability that a pair with the given Jaccard similarity becomes a candidate.
+     */
+    double candidateProbability(double jaccard) {
+        return 1 - Math.pow(1 - Math.pow(jaccard, rows), bands);
+    }
+
+    private static long mix(long x) {
+        x = (x ^ (x >>> 33)) * 0xff51afd7ed558ccdL;
+        x = (x ^ (x >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return x ^ (x >>> 33);
+    }
+
+    int[] signature(SparseVector document) {
+        int[] signature = new int[multipliers.length];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (int term : document.terms) {
+            long x = mix(term);
+            for (int f = 0; f < signature.length; f++) {
+                signature[f] = Math.min(signature[f], (int) ((x * multipliers[f] + addends[f]) >>> 32));
+            }
+        }
+        return signature;
+    }
+
+    private long bandHash(int[] signature, int band) {
+        long hash = band;
+        for (int f = band * rows; f < (band + 1) * rows; f++) hash = mix(hash * 31 + signature[f]);
+        return hash;
+    }
+
+    private boolean sameBand(int[] a, int[] b, int band) {
+        for (int f = band * rows; f < (band + 1) * rows; f++) {
+            if (a[f] != b[f]) return false;
+        }
+        return true;
+    }
+
+    List<SimilarPair> topPairs(List<SparseVector> documents, List<int[]> signatures, int k) throws InterruptedException {
+        int n = documents.size();
+        // a bucket entry is the band hash with the document in its low bits
+        int documentBits = 32 - Integer.numberOfLeadingZeros(Math.max(1, n - 1));
+        long documentMask = (1L << documentBits) - 1;
+
+        List<Callable<TopPairs>> tasks = new ArrayList<>();
+        for (int b = 0; b < bands; b++) {
+            int band = b;
+            tasks.add(() -> {
+                long[] entries = new long[n];
+                int count = 0;
+                for (int d = 0; d < n; d++) {
+                    // a document without terms is not similar to anything
+                    if (documents.get(d).size() == 0) continue;
+                    entries[count++] = bandHash(signatures.get(d), band) & ~documentMask | d;
+                }
+                Arrays.sort(entries, 0, count);
+
+                TopPairs found = new TopPairs(k);
+                for (int from = 0, to; from < count; from = to) {
+                    long bucket = entries[from] & ~documentMask;
+                    for (to = from + 1; to < count && (entries[to] & ~documentMask) == bucket; to++) ;
+                    for (int x = from; x < to; x++) {
+                        int i = (int) (entries[x] & documentMask);
+                        for (int y = x + 1; y < to; y++) {
+                            int j = (int) (entries[y] & documentMask);
+                            if (collidedBefore(signatures.get(i), signatures.get(j), band)) continue;
+                            found.offer(i, j, documents.get(i).cosine(documents.get(j)));
+                        }
+                    }
+                }
+                return found;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(bands, Runtime.getRuntime().availableProcessors()));
+        try {
+            TopPairs found = new TopPairs(k);
+            for (Future<TopPairs> f : executor.invokeAll(tasks)) found.addAll(f.get());
+            return found.best();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // a pair sharing an earlier band is already scored there
+    private boolean collidedBefore(int[] a, int[] b, int band) {
+        for (int e = 0; e < band; e++) {
+            if (sameBand(a, b, e)) return true;
+        }
+        return false;
+    }
+}
+
+class TextProcessor {
+    private final Map<String, Integer> termIds = new HashMap<>();
+    private final List<String> terms = new ArrayList<>();
+    private int[] corpusCounts = new int[16];
+    final List<SparseVector> documents = new ArrayList<>();
+    final List<String> rawTexts = new ArrayList<>();
+    // only kept in the approximate mode
+    private final MinHashLsh lsh;
+    final List<int[]> signatures = new ArrayList<>();
 
     TextProcessor() {
-        allWordsMap = new TreeMap<>();
-        wordsByDocumentsMaps = new ArrayList<>();
-        rawTexts = new ArrayList<>();
+        this(null);
+    }
+
+    /**
+     * With an {@code lsh}, every text read gets a MinHash signature and mostSimilarTexts
+     * searches approximately.
+     */
+    TextProcessor(MinHashLsh lsh) {
+        this.lsh = lsh;
     }
 
     public void readText(InputStream is) {
         Scanner sc = new Scanner(is);
+        int[] termBuffer = new int[16];
         while (sc.hasNextLine()) {
-            Map<String, Integer> wordsMapForText = new TreeMap<>();
             String line = sc.nextLine();
             if (line.equals("END"))
                 break;
@@ -26,98 +522,340 @@ class TextProcessor {  Map<String, Integer> allWordsMap;
             line = line.replaceAll("[^A-Za-z\\s+]", "");
             line = line.toLowerCase();
             String[] words = line.split("\\s+");
-            Arrays.stream(words)
-                    .forEach(word -> {
-                        fillMap(wordsMapForText, word);
-                        fillMap(allWordsMap, word);
-                    });
-
-            wordsByDocumentsMaps.add(wordsMapForText);
+            if (termBuffer.length < words.length) termBuffer = new int[words.length];
+            for (int i = 0; i < words.length; i++) {
+                int id = termIds.computeIfAbsent(words[i], word -> {
+                    terms.add(word);
+                    return terms.size() - 1;
+                });
+                if (id == corpusCounts.length) corpusCounts = Arrays.copyOf(corpusCounts, id * 2);
+                corpusCounts[id]++;
+                termBuffer[i] = id;
+            }
+            SparseVector document = SparseVector.fromTermIds(termBuffer, words.length);
+            documents.add(document);
+            if (lsh != null) signatures.add(lsh.signature(document));
         }
-        fillMaps();
     }
 
-    private void fillMap(Map<String, Integer> map, String word) {
-        map.putIfAbsent(word, 0);
-        map.computeIfPresent(word, (k, v) -> {
-            v++;
-            return v;
-        });
-    }
-
-    private void fillMaps() {
-        allWordsMap.keySet().forEach(word -> {
-            wordsByDocumentsMaps.forEach(map -> {
-                map.putIfAbsent(word, 0);
-            });
-        });
+    // term ids in alphabetical order of their terms
+    private Integer[] alphabeticalTermIds() {
+        Integer[] ids = new Integer[terms.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = i;
+        Arrays.sort(ids, Comparator.comparing(terms::get));
+        return ids;
     }
 
+    /**
+     * Prints every document as a dense vector over the whole corpus vocabulary in alphabetical order.
+     * Only the row being printed is ever dense.
+     */
     public void printTextsVectors (OutputStream os) {
         PrintWriter pw = new PrintWriter(os);
-        wordsByDocumentsMaps.stream().map(Map::values).forEach(pw::println);
+        Integer[] alphabetical = alphabeticalTermIds();
+        int[] rank = new int[alphabetical.length];
+        for (int r = 0; r < alphabetical.length; r++) rank[alphabetical[r]] = r;
+        int[] row = new int[alphabetical.length];
+        StringBuilder sb = new StringBuilder();
+        for (SparseVector document : documents) {
+            for (int i = 0; i < document.size(); i++) row[rank[document.terms[i]]] = document.counts[i];
+            sb.setLength(0);
+            sb.append('[');
+            for (int r = 0; r < row.length; r++) {
+                if (r > 0) sb.append(", ");
+                sb.append(row[r]);
+            }
+            sb.append(']');
+            pw.println(sb);
+            for (int term : document.terms) row[rank[term]] = 0;
+        }
         pw.flush();
     }
 
     public void printCorpus(OutputStream os, int n, boolean ascending) {
 
         PrintWriter pw = new PrintWriter(os);
-        allWordsMap.entrySet().stream()
-                .sorted(ascending ? Map.Entry.comparingByValue(Comparator.naturalOrder()) : Map.Entry.comparingByValue(Comparator.reverseOrder()))
+        // the sort is stable, so words with equal counts stay in alphabetical order
+        Arrays.stream(alphabeticalTermIds())
+                .sorted(ascending ? Comparator.comparingInt((Integer id) -> corpusCounts[id])
+                        : Comparator.comparingInt((Integer id) -> corpusCounts[id]).reversed())
                 .limit(n)
-                .forEach(entry -> pw.println(String.format("%s : %d", entry.getKey(), entry.getValue())));
+                .forEach(id -> pw.println(String.format("%s : %d", terms.get(id), corpusCounts[id])));
         pw.flush();
     }
 
+    /**
+     * The k most similar pairs of documents by cosine similarity, most similar first.
+     */
+    public List<SimilarPair> mostSimilarPairs(int k) {
+        if (k <= 0) return List.of();
+        try {
+            return new SimilarityIndex(documents, terms.size()).topPairs(k);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The k most similar pairs found through the MinHash bands, most similar first. Pairs that
+     * never share a bucket are missed, so this may differ from {@link #mostSimilarPairs}.
+     */
+    public List<SimilarPair> approximateSimilarPairs(int k) {
+        if (lsh == null) throw new IllegalStateException("Texts were read without MinHash signatures");
+        if (k <= 0) return List.of();
+        try {
+            return lsh.topPairs(documents, signatures, k);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
     public void mostSimilarTexts (OutputStream os) {
         PrintWriter pw = new PrintWriter(os);
-        double maxSimilarity = 0;
-        int iMax=0, jMax = 0;
-        for (int i=0;i<rawTexts.size();i++) {
-            for (int j=0;j<rawTexts.size();j++) {
-                if (i != j) {
-                    double sim = CosineSimilarityCalculator.cosineSimilarity(
-                            wordsByDocumentsMaps.get(i).values(),
-                            wordsByDocumentsMaps.get(j).values()
-                    );
-                    if (sim>maxSimilarity) {
-                        maxSimilarity = sim;
-                        iMax = i;
-                        jMax = j;
-                    }
-                }
-            }
-        }
+        List<SimilarPair> best = lsh == null ? mostSimilarPairs(1) : approximateSimilarPairs(1);
+        // with no similar pair at all, the first text is reported against itself
+        SimilarPair pair = best.isEmpty() ? new SimilarPair(0, 0, 0) : best.get(0);
 
-        pw.println(rawTexts.get(iMax));
-        pw.println(rawTexts.get(jMax));
-        pw.println(String.format("%.10f", maxSimilarity));
+        pw.println(rawTexts.get(pair.first));
+        pw.println(rawTexts.get(pair.second));
+        pw.println(String.format("%.10f", pair.similarity));
 
         pw.flush();
     }
 }
 
 
-class CosineSimilarityCalculator {
-    public static double cosineSimilarity(Collection<Integer> c1, Collection<Integer> c2) {
+class TextSimilarityBenchmark {
+    private static final int VOCABULARY = 100_000;
+    private static final int CHECKED_DOCUMENTS = 500;
+    private static final int K = 10;
+    private static final int SAMPLED_PAIRS = 2_000_000;
+
+    // cumulative Zipf weights over the vocabulary, so a few words are in most documents
+    static double[] zipf(int words) {
+        double[] cumulative = new double[words];
+        double sum = 0;
+        for (int i = 0; i < words; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < words; i++) cumulative[i] /= sum;
+        return cumulative;
+    }
+
+    static String word(double[] zipf, Random random) {
+        int index = Arrays.binarySearch(zipf, random.nextDouble());
+        if (index < 0) index = -index - 1;
+        // letters only, since readText drops everything else
+        StringBuilder word = new StringBuilder("w");
+        for (int n = Math.min(index, zipf.length - 1); n > 0; n /= 26) word.append((char) ('a' + n % 26));
+        return word.toString();
+    }
+
+    // one text per line, every twentieth a near-duplicate of an earlier one
+    static String corpus(int documents, Random random) {
+        double[] zipf = zipf(VOCABULARY);
+        List<String> texts = new ArrayList<>(documents);
+        StringBuilder out = new StringBuilder();
+        for (int d = 0; d < documents; d++) {
+            StringBuilder text = new StringBuilder();
+            if (d > 0 && d % 20 == 0) {
+                String[] words = texts.get(random.nextInt(d)).split(" ");
+                words[random.nextInt(words.length)] = word(zipf, random);
+                text.append(String.join(" ", words));
+            } else {
+                int length = 8 + random.nextInt(33);
+                for (int i = 0; i < length; i++) {
+                    if (i > 0) text.append(' ');
+                    text.append(word(zipf, random));
+                }
+            }
+            texts.add(text.toString());
+            out.append(text).append('\n');
+        }
+        return out.append("END\n").toString();
+    }
+
+    static TextProcessor read(String corpus) {
+        TextProcessor processor = new TextProcessor();
+        processor.readText(new ByteArrayInputStream(corpus.getBytes(StandardCharsets.UTF_8)));
+        return processor;
+    }
+
+    // what mostSimilarTexts used to do: a dense vector per text over the sorted vocabulary, and every pair compared
+    static SimilarPair denseBruteForce(String corpus) {
+        List<TreeMap<String, Integer>> counts = new ArrayList<>();
+        TreeMap<String, Integer> vocabulary = new TreeMap<>();
+        for (String line : corpus.split("\n")) {
+            if (line.equals("END")) break;
+            TreeMap<String, Integer> text = new TreeMap<>();
+            for (String word : line.replaceAll("[^A-Za-z\\s+]", "").toLowerCase().split("\\s+")) {
+                text.merge(word, 1, Integer::sum);
+                vocabulary.put(word, 0);
+            }
+            counts.add(text);
+        }
+        List<List<Integer>> vectors = new ArrayList<>();
+        for (TreeMap<String, Integer> text : counts) {
+            List<Integer> vector = new ArrayList<>();
+            for (String word : vocabulary.keySet()) vector.add(text.getOrDefault(word, 0));
+            vectors.add(vector);
+        }
+        SimilarPair best = new SimilarPair(0, 0, 0);
+        for (int i = 0; i < vectors.size(); i++) {
+            for (int j = i + 1; j < vectors.size(); j++) {
+                double similarity = denseCosine(vectors.get(i), vectors.get(j));
+                if (similarity > best.similarity) best = new SimilarPair(i, j, similarity);
+            }
+        }
+        return best;
+    }
+
+    static double denseCosine(List<Integer> a, List<Integer> b) {
         double dotProduct = 0;
         double normA = 0;
         double normB = 0;
-
-        Iterator<Integer> it1 = c1.iterator();
-        Iterator<Integer> it2 = c2.iterator();
-
-        while (it1.hasNext() && it2.hasNext()) {
-            int v1 = it1.next();
-            int v2 = it2.next();
+        for (int i = 0; i < a.size() && i < b.size(); i++) {
+            int v1 = a.get(i);
+            int v2 = b.get(i);
             dotProduct += (v1 * v2);
             normA += Math.pow(v1, 2);
             normB += Math.pow(v2, 2);
         }
-
         if (normA == 0 || normB == 0) return 0.0;
         return dotProduct / (Math.sqrt(normA) * Math.sqrt(normB));
     }
+
+    // every pair scored on the sparse vectors, for the top k
+    static List<SimilarPair> sparseBruteForce(TextProcessor processor, int k) {
+        TopPairs top = new TopPairs(k);
+        List<SparseVector> documents = processor.documents;
+        for (int i = 0; i < documents.size(); i++) {
+            for (int j = i + 1; j < documents.size(); j++) {
+                SparseVector a = documents.get(i);
+                SparseVector b = documents.get(j);
+                top.offer(i, j, a.dot(b) / (a.norm * b.norm));
+            }
+        }
+        return top.best();
+    }
+
+    static void check(List<SimilarPair> expected, List<SimilarPair> actual) {
+        if (expected.size() != actual.size()) throw new RuntimeException("ERROR: Found " + actual.size() + " pairs, expected " + expected.size());
+        for (int i = 0; i < expected.size(); i++) {
+            SimilarPair e = expected.get(i);
+            SimilarPair a = actual.get(i);
+            if (e.first != a.first || e.second != a.second || e.similarity != a.similarity)
+                throw new RuntimeException("ERROR: Pair " + i + " is (" + a.first + ", " + a.second + "), expected (" + e.first + ", " + e.second + ")");
+        }
+    }
+
+    // seconds every pair would take at the rate of a random sample
+    static double estimateAllPairs(TextProcessor processor, Random random) {
+        List<SparseVector> documents = processor.documents;
+        int n = documents.size();
+        double total = 0;
+        long start = System.nanoTime();
+        for (int s = 0; s < SAMPLED_PAIRS; s++) {
+            SparseVector a = documents.get(random.nextInt(n));
+            SparseVector b = documents.get(random.nextInt(n));
+            total += a.dot(b) / (a.norm * b.norm);
+        }
+        double perPair = (System.nanoTime() - start) / 1e9 / SAMPLED_PAIRS;
+        // term counts are positive, so every similarity lies in [0, 1]
+        if (!(total >= 0 && total <= SAMPLED_PAIRS * (1 + 1e-9)))
+            throw new RuntimeException("ERROR: Sampled similarities add up to " + total + " over " + SAMPLED_PAIRS + " pairs");
+        return perPair * ((double) n * (n - 1) / 2);
+    }
+
+    static void run(int documents, Random random) {
+        TextProcessor processor = read(corpus(documents, random));
+        long start = System.nanoTime();
+        List<SimilarPair> best = processor.mostSimilarPairs(K);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double allPairs = estimateAllPairs(processor, random);
+        System.out.printf("%,10d texts   index %,9.2f s   all pairs ~%,11.0f s   best %.6f%n",
+                documents, seconds, allPairs, best.get(0).similarity);
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+
+        String small = corpus(CHECKED_DOCUMENTS, random);
+        TextProcessor processor = read(small);
+        check(sparseBruteForce(processor, K), processor.mostSimilarPairs(K));
+        SimilarPair dense = denseBruteForce(small);
+        check(List.of(dense), processor.mostSimilarPairs(1));
+        if (!processor.mostSimilarPairs(0).isEmpty() || !processor.mostSimilarPairs(-1).isEmpty())
+            throw new RuntimeException("ERROR: Found pairs when asked for none");
+        System.out.printf("%,d texts: same top %d as scoring every pair, same best pair as the dense vectors%n", CHECKED_DOCUMENTS, K);
+
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        for (int documents = 10_000; documents <= largest; documents *= 10) run(documents, random);
+    }
+}
+
+class TextSimilarityLshBenchmark {
+    private static final int K = 100;
+    private static final int[][] BANDS_AND_ROWS = {{4, 4}, {8, 4}, {16, 4}, {16, 5}};
+
+    static TextProcessor read(String corpus, MinHashLsh lsh) {
+        TextProcessor processor = new TextProcessor(lsh);
+        processor.readText(new ByteArrayInputStream(corpus.getBytes(StandardCharsets.UTF_8)));
+        return processor;
+    }
+
+    static Set<Long> pairs(List<SimilarPair> found) {
+        Set<Long> pairs = new HashSet<>();
+        for (SimilarPair pair : found) pairs.add((long) pair.first << 32 | pair.second);
+        return pairs;
+    }
+
+    static void run(int documents, Random random) {
+        String corpus = TextSimilarityBenchmark.corpus(documents, random);
+        long start = System.nanoTime();
+        TextProcessor exact = read(corpus, null);
+        double readSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        List<SimilarPair> expected = exact.mostSimilarPairs(K);
+        double exactSeconds = (System.nanoTime() - start) / 1e9;
+        Set<Long> expectedPairs = pairs(expected);
+        System.out.printf("%,d texts, top %d: read %.2f s, exact %.2f s%n", documents, K, readSeconds, exactSeconds);
+
+        for (int[] config : BANDS_AND_ROWS) {
+            MinHashLsh lsh = new MinHashLsh(config[0], config[1], 42);
+            TextProcessor approximate = read(corpus, lsh);
+            // what readText spends on top of reading
+            start = System.nanoTime();
+            for (SparseVector document : exact.documents) lsh.signature(document);
+            double signatureSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            List<SimilarPair> found = approximate.approximateSimilarPairs(K);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            int recalled = 0;
+            for (SimilarPair pair : found) {
+                if (expectedPairs.contains((long) pair.first << 32 | pair.second)) recalled++;
+            }
+            for (SimilarPair pair : found) {
+                if (pair.similarity != exact.documents.get(pair.first).cosine(exact.documents.get(pair.second)))
+                    throw new RuntimeException("ERROR: Pair (" + pair.first + ", " + pair.second + ") has the wrong similarity");
+            }
+            System.out.printf("  %2d bands x %d rows (Jaccard threshold ~%.2f)   signatures +%.2f s   search %.2f s   %5.1fx faster   recall %.3f%n",
+                    lsh.bands, lsh.rows, Math.pow(1.0 / lsh.bands, 1.0 / lsh.rows), signatureSeconds, seconds,
+                    exactSeconds / seconds, (double) recalled / expected.size());
+        }
+    }
+
+    public static void main(String[] args) {
+        Random random = new Random(42);
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        for (int documents = 10_000; documents <= largest; documents *= 10) run(documents, random);
+    }
 }
 
 public class TextProcessorTest {
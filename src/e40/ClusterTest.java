@@ -1,7 +1,11 @@
 package e40;
 
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * January 2016 Exam problem 2
@@ -10,33 +14,625 @@ interface Clusterable<T>{
     long getId();
     double distance(T other);
 }
+
+/**
+ * An element whose distance is the Euclidean distance between its x and y coordinates,
+ * which lets a KD-tree prune by coordinate.
+ */
+interface PlanarClusterable<T> extends Clusterable<T> {
+    float getX();
+
+    float getY();
+}
+
+class Neighbour<T> {
+    final T item;
+    final double distance;
+
+    Neighbour(T item, double distance) {
+        this.item = item;
+        this.distance = distance;
+    }
+}
+
+interface SpatialIndex<T> {
+    /**
+     * The k elements closest to the target, nearest first and by id among equal distances,
+     * leaving out the element with the given id.
+     */
+    List<Neighbour<T>> nearest(T target, int k, long excludeId);
+}
+
+/**
+ * Bounded max-heap of the k best candidates seen so far, by key and then id.
+ * The root is the worst of them, the one to replace when a better candidate comes along.
+ */
+class NeighbourHeap {
+    private final int[] indexes;
+    private final double[] keys;
+    private final long[] ids;
+    private int size;
+
+    NeighbourHeap(int capacity) {
+        indexes = new int[capacity];
+        keys = new double[capacity];
+        ids = new long[capacity];
+    }
+
+    boolean isFull() {
+        return size == indexes.length;
+    }
+
+    // only meaningful once full
+    double worstKey() {
+        return keys[0];
+    }
+
+    private boolean worse(int a, int b) {
+        return keys[a] > keys[b] || (keys[a] == keys[b] && ids[a] > ids[b]);
+    }
+
+    void offer(int index, double key, long id) {
+        if (indexes.length == 0) return;
+        if (isFull()) {
+            if (key > keys[0] || (key == keys[0] && id >= ids[0])) return;
+            set(0, index, key, id);
+            siftDown(0);
+        } else {
+            set(size, index, key, id);
+            siftUp(size++);
+        }
+    }
+
+    private void set(int slot, int index, double key, long id) {
+        indexes[slot] = index;
+        keys[slot] = key;
+        ids[slot] = id;
+    }
+
+    private void swap(int a, int b) {
+        int index = indexes[a];
+        double key = keys[a];
+        long id = ids[a];
+        set(a, indexes[b], keys[b], ids[b]);
+        set(b, index, key, id);
+    }
+
+    private void siftUp(int slot) {
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            if (!worse(slot, parent)) return;
+            swap(slot, parent);
+            slot = parent;
+        }
+    }
+
+    private void siftDown(int slot) {
+        while (true) {
+            int child = 2 * slot + 1;
+            if (child >= size) return;
+            if (child + 1 < size && worse(child + 1, child)) child++;
+            if (!worse(child, slot)) return;
+            swap(slot, child);
+            slot = child;
+        }
+    }
+
+    /**
+     * Empties the heap into parallel arrays, best first.
+     */
+    int drain(int[] indexesOut, double[] keysOut) {
+        int count = size;
+        for (int i = count - 1; i >= 0; i--) {
+            indexesOut[i] = indexes[0];
+            keysOut[i] = keys[0];
+            set(0, indexes[size - 1], keys[size - 1], ids[size - 1]);
+            size--;
+            siftDown(0);
+        }
+        return count;
+    }
+}
+
+/**
+ * Points as parallel primitive arrays rather than one object each, so a scan over them
+ * reads memory sequentially and the distance loop can be vectorized by the JIT.
+ */
+class PointStore {
+    long[] ids;
+    float[] xs;
+    float[] ys;
+    int size;
+
+    PointStore(int capacity) {
+        ids = new long[Math.max(1, capacity)];
+        xs = new float[ids.length];
+        ys = new float[ids.length];
+    }
+
+    int add(long id, float x, float y) {
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+        }
+        ids[size] = id;
+        xs[size] = x;
+        ys[size] = y;
+        return size++;
+    }
+
+    void set(int index, float x, float y) {
+        xs[index] = x;
+        ys[index] = y;
+    }
+
+    PointStore copy() {
+        PointStore copy = new PointStore(size);
+        System.arraycopy(ids, 0, copy.ids, 0, size);
+        System.arraycopy(xs, 0, copy.xs, 0, size);
+        System.arraycopy(ys, 0, copy.ys, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    void swap(int a, int b) {
+        long id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        float x = xs[a];
+        xs[a] = xs[b];
+        xs[b] = x;
+        float y = ys[a];
+        ys[a] = ys[b];
+        ys[b] = y;
+    }
+
+    /**
+     * Squared distances from (qx, qy) to the points in [from, to), written to out from index 0.
+     * The differences are taken in float and squared in double, as in Point2D.distance.
+     */
+    void squaredDistances(int from, int to, float qx, float qy, double[] out) {
+        float[] xs = this.xs;
+        float[] ys = this.ys;
+        for (int i = from; i < to; i++) {
+            double dx = xs[i] - qx;
+            double dy = ys[i] - qy;
+            out[i - from] = dx * dx + dy * dy;
+        }
+    }
+}
+
+/**
+ * KD-tree over a point store, stored implicitly in its arrays: the median of a range is its node,
+ * with the lower half to its left and the upper half to its right, splitting on x and y in turn.
+ * Ranges of up to LEAF points are not split but scanned with the batched distance kernel.
+ * Results are positions in the tree's own, reordered copy of the store.
+ */
+class PointKdTree {
+    private static final int LEAF = 32;
+    // ranges at least this large are built on the fork/join pool
+    private static final int PARALLEL_BUILD = 1 << 15;
+
+    private final PointStore points;
+    // where each point was in the store the tree was built from
+    private final int[] origin;
+
+    PointKdTree(PointStore source) {
+        points = source.copy();
+        origin = new int[points.size];
+        for (int i = 0; i < origin.length; i++) origin[i] = i;
+        ForkJoinPool.commonPool().invoke(new BuildTask(0, points.size, 0));
+    }
+
+    int size() {
+        return points.size;
+    }
+
+    int origin(int position) {
+        return origin[position];
+    }
+
+    long id(int position) {
+        return points.ids[position];
+    }
+
+    private class BuildTask extends RecursiveAction {
+        private final int lo;
+        private final int hi;
+        private final int depth;
+
+        BuildTask(int lo, int hi, int depth) {
+            this.lo = lo;
+            this.hi = hi;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            build(lo, hi, depth);
+        }
+
+        private void build(int lo, int hi, int depth) {
+            while (hi - lo > LEAF) {
+                int mid = (lo + hi) >>> 1;
+                select(lo, hi, mid, depth & 1);
+                if (hi - lo >= PARALLEL_BUILD) {
+                    invokeAll(new BuildTask(lo, mid, depth + 1), new BuildTask(mid + 1, hi, depth + 1));
+                    return;
+                }
+                build(lo, mid, depth + 1);
+                lo = mid + 1;
+                depth++;
+            }
+        }
+    }
+
+    private float key(int i, int axis) {
+        return axis == 0 ? points.xs[i] : points.ys[i];
+    }
+
+    // quickselect with a three-way partition, so runs of equal coordinates cannot make it quadratic
+    private void select(int lo, int hi, int nth, int axis) {
+        while (hi - lo > 1) {
+            float pivot = key(lo + (hi - lo) / 2, axis);
+            int lt = lo, i = lo, gt = hi;
+            while (i < gt) {
+                float k = key(i, axis);
+                if (k < pivot) swap(lt++, i++);
+                else if (k > pivot) swap(i, --gt);
+                else i++;
+            }
+            if (nth < lt) hi = lt;
+            else if (nth >= gt) lo = gt;
+            else return;
+        }
+    }
+
+    private void swap(int a, int b) {
+        points.swap(a, b);
+        int o = origin[a];
+        origin[a] = origin[b];
+        origin[b] = o;
+    }
+
+    /**
+     * Offers the points nearest to (qx, qy) to the heap, by squared distance.
+     */
+    void nearest(float qx, float qy, long excludeId, NeighbourHeap heap) {
+        search(0, points.size, 0, qx, qy, excludeId, heap, new double[LEAF]);
+    }
+
+    private void search(int lo, int hi, int depth, float qx, float qy, long excludeId,
+                        NeighbourHeap heap, double[] leaf) {
+        while (hi - lo > LEAF) {
+            int mid = (lo + hi) >>> 1;
+            double dx = points.xs[mid] - qx;
+            double dy = points.ys[mid] - qy;
+            if (points.ids[mid] != excludeId) heap.offer(mid, dx * dx + dy * dy, points.ids[mid]);
+            // diff is how far the query is past the splitting line
+            double diff = (depth & 1) == 0 ? -dx : -dy;
+            int nearLo = diff < 0 ? lo : mid + 1;
+            int nearHi = diff < 0 ? mid : hi;
+            int farLo = diff < 0 ? mid + 1 : lo;
+            int farHi = diff < 0 ? hi : mid;
+            search(nearLo, nearHi, depth + 1, qx, qy, excludeId, heap, leaf);
+            // everything on the far side is at least |diff| away
+            if (heap.isFull() && diff * diff > heap.worstKey()) return;
+            lo = farLo;
+            hi = farHi;
+            depth++;
+        }
+        points.squaredDistances(lo, hi, qx, qy, leaf);
+        for (int i = lo; i < hi; i++) {
+            if (points.ids[i] != excludeId) heap.offer(i, leaf[i - lo], points.ids[i]);
+        }
+    }
+}
+
+/**
+ * KD-tree index for elements whose distance is Euclidean over their coordinates.
+ */
+class KdTree<T extends PlanarClusterable<T>> implements SpatialIndex<T> {
+    private final Object[] items;
+    private final PointKdTree tree;
+
+    public KdTree(List<T> elements) {
+        items = elements.toArray();
+        PointStore points = new PointStore(elements.size());
+        for (T item : elements) points.add(item.getId(), item.getX(), item.getY());
+        tree = new PointKdTree(points);
+    }
+
+    @Override
+    public List<Neighbour<T>> nearest(T target, int k, long excludeId) {
+        if (k <= 0) return List.of();
+        int capacity = Math.min(k, tree.size());
+        NeighbourHeap heap = new NeighbourHeap(capacity);
+        tree.nearest(target.getX(), target.getY(), excludeId, heap);
+        int[] found = new int[capacity];
+        double[] squared = new double[capacity];
+        int count = heap.drain(found, squared);
+        List<Neighbour<T>> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            @SuppressWarnings("unchecked")
+            T item = (T) items[tree.origin(found[i])];
+            // ranked by squared distance; the square root is only taken for the results
+            result.add(new Neighbour<>(item, Math.sqrt(squared[i])));
+        }
+        return result;
+    }
+}
+
+/**
+ * Vantage-point tree for any metric distance, stored implicitly in arrays. The first element of
+ * a range is its vantage point; the closer half of the rest (within the median distance) follows
+ * it and the farther half comes after. Search relies on the triangle inequality.
+ */
+class VantagePointTree<T extends Clusterable<T>> implements SpatialIndex<T> {
+    private static final int PARALLEL_BUILD = 1 << 14;
+
+    private final List<T> items;
+    private final double[] radius;
+    private final long[] ids;
+    // distance of each element to the vantage point of the range being built
+    private final double[] scratch;
+
+    public VantagePointTree(List<T> elements) {
+        int n = elements.size();
+        items = new ArrayList<>(elements);
+        radius = new double[n];
+        ids = new long[n];
+        scratch = new double[n];
+        ForkJoinPool.commonPool().invoke(new BuildTask(0, n));
+        for (int i = 0; i < n; i++) ids[i] = items.get(i).getId();
+    }
+
+    private class BuildTask extends RecursiveAction {
+        private final int lo;
+        private final int hi;
+
+        BuildTask(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            build(lo, hi);
+        }
+
+        private void build(int lo, int hi) {
+            while (hi - lo > 1) {
+                // a random vantage point keeps sorted input from producing a degenerate tree
+                Collections.swap(items, lo, ThreadLocalRandom.current().nextInt(lo, hi));
+                T vantage = items.get(lo);
+                for (int i = lo + 1; i < hi; i++) scratch[i] = vantage.distance(items.get(i));
+                int mid = (lo + 1 + hi) >>> 1;
+                select(lo + 1, hi, mid);
+                radius[lo] = scratch[mid];
+                if (hi - lo >= PARALLEL_BUILD) {
+                    invokeAll(new BuildTask(lo + 1, mid), new BuildTask(mid, hi));
+                    return;
+                }
+                build(lo + 1, mid);
+                lo = mid;
+            }
+        }
+    }
+
+    private void select(int lo, int hi, int nth) {
+        while (hi - lo > 1) {
+            double pivot = scratch[lo + (hi - lo) / 2];
+            int lt = lo, i = lo, gt = hi;
+            while (i < gt) {
+                double d = scratch[i];
+                if (d < pivot) swap(lt++, i++);
+                else if (d > pivot) swap(i, --gt);
+                else i++;
+            }
+            if (nth < lt) hi = lt;
+            else if (nth >= gt) lo = gt;
+            else return;
+        }
+    }
+
+    private void swap(int a, int b) {
+        Collections.swap(items, a, b);
+        double d = scratch[a];
+        scratch[a] = scratch[b];
+        scratch[b] = d;
+    }
+
+    @Override
+    public List<Neighbour<T>> nearest(T target, int k, long excludeId) {
+        if (k <= 0) return List.of();
+        int capacity = Math.min(k, items.size());
+        NeighbourHeap heap = new NeighbourHeap(capacity);
+        search(0, items.size(), target, heap, excludeId);
+        int[] found = new int[capacity];
+        double[] distances = new double[capacity];
+        int count = heap.drain(found, distances);
+        List<Neighbour<T>> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) result.add(new Neighbour<>(items.get(found[i]), distances[i]));
+        return result;
+    }
+
+    private void search(int lo, int hi, T target, NeighbourHeap heap, long excludeId) {
+        if (lo >= hi) return;
+        double d = target.distance(items.get(lo));
+        if (ids[lo] != excludeId) heap.offer(lo, d, ids[lo]);
+        if (hi - lo == 1) return;
+        int mid = (lo + 1 + hi) >>> 1;
+        double mu = radius[lo];
+        // the inside holds distances up to mu from the vantage point and the outside from mu on
+        if (d < mu) {
+            search(lo + 1, mid, target, heap, excludeId);
+            if (!heap.isFull() || d + heap.worstKey() >= mu) search(mid, hi, target, heap, excludeId);
+        } else {
+            search(mid, hi, target, heap, excludeId);
+            if (!heap.isFull() || d - heap.worstKey() <= mu) search(lo + 1, mid, target, heap, excludeId);
+        }
+    }
+}
+
 class Cluster<T extends Clusterable<T>> {
     private final Map<Long, T> elements = new HashMap<>();
+    private final Function<List<T>, SpatialIndex<T>> indexBuilder;
+    // rebuilt in bulk by the first query after a change
+    private SpatialIndex<T> index;
+
+    /**
+     * Indexes planar elements with a KD-tree and any other metric with a vantage-point tree.
+     */
+    public Cluster() {
+        this(Cluster::defaultIndex);
+    }
+
+    public Cluster(Function<List<T>, SpatialIndex<T>> indexBuilder) {
+        this.indexBuilder = indexBuilder;
+    }
 
     public void addItem(T element) {
         elements.put(element.getId(), element);
+        index = null;
     }
 
-    public void near(long id, int top) {
+    public List<Neighbour<T>> nearest(long id, int top) {
         T target = elements.get(id);
-        if (target == null) return;
+        if (target == null) return List.of();
+        if (index == null) index = indexBuilder.apply(new ArrayList<>(elements.values()));
+        return index.nearest(target, top, id);
+    }
+
+    private static <T extends Clusterable<T>> SpatialIndex<T> defaultIndex(List<T> elements) {
+        for (T element : elements) {
+            if (!(element instanceof PlanarClusterable)) return new VantagePointTree<>(elements);
+        }
+        return planarIndex(elements);
+    }
+
+    // every element is planar, so T is in fact a PlanarClusterable<T>
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T extends Clusterable<T>> SpatialIndex<T> planarIndex(List<T> elements) {
+        return new KdTree(elements);
+    }
+
+    public void near(long id, int top) {
+        int count = 1;
+        for (Neighbour<T> neighbour : nearest(id, top)) {
+            System.out.printf("%d. %d -> %.3f%n", count++, neighbour.item.getId(), neighbour.distance);
+        }
+    }
+}
 
-        AtomicInteger count = new AtomicInteger(1);
+/**
+ * Open-addressing map from long ids to positions, with linear probing and no boxing.
+ */
+class IdIndex {
+    private static final int MISSING = -1;
+
+    private long[] keys = new long[16];
+    private int[] values = new int[16];
+    private int size;
+
+    IdIndex() {
+        Arrays.fill(values, MISSING);
+    }
+
+    private static int slot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] != MISSING; i = (i + 1) & mask) {
+            if (keys[i] == key) return values[i];
+        }
+        return MISSING;
+    }
+
+    void put(long key, int value) {
+        // at most half full, so probe sequences stay short
+        if (2 * (size + 1) > keys.length) grow();
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (values[i] != MISSING && keys[i] != key) i = (i + 1) & mask;
+        if (values[i] == MISSING) size++;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(values, MISSING);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != MISSING) put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
+
+/**
+ * Cluster of 2D points kept in a point store instead of as Point2D objects.
+ */
+class PointCluster {
+    private final PointStore points = new PointStore(16);
+    private final IdIndex indexById = new IdIndex();
+    // rebuilt in bulk by the first query after a change
+    private PointKdTree index;
+
+    public void addItem(Point2D point) {
+        addItem(point.getId(), point.getX(), point.getY());
+    }
+
+    public void addItem(long id, float x, float y) {
+        int existing = indexById.get(id);
+        if (existing >= 0) points.set(existing, x, y);
+        else indexById.put(id, points.add(id, x, y));
+        index = null;
+    }
+
+    public int size() {
+        return points.size;
+    }
+
+    /**
+     * Ids of the nearest points, nearest first, with their distances in the same order.
+     */
+    public int nearest(long id, int top, long[] ids, double[] distances) {
+        int target = indexById.get(id);
+        if (target < 0 || top <= 0) return 0;
+        if (index == null) index = new PointKdTree(points);
+        int capacity = Math.min(top, points.size);
+        NeighbourHeap heap = new NeighbourHeap(capacity);
+        index.nearest(points.xs[target], points.ys[target], id, heap);
+        int[] found = new int[capacity];
+        int count = heap.drain(found, distances);
+        for (int i = 0; i < count; i++) {
+            ids[i] = index.id(found[i]);
+            distances[i] = Math.sqrt(distances[i]);
+        }
+        return count;
+    }
 
-        elements.values().stream()
-                .filter(item -> item.getId() != id)
-                .sorted(Comparator.comparingDouble(target::distance))
-                .limit(top)
-                .forEach(item ->
-                        System.out.printf("%d. %d -> %.3f%n",
-                                count.getAndIncrement(),
-                                item.getId(),
-                                target.distance(item)
-                        ));
+    public void near(long id, int top) {
+        int capacity = Math.max(0, Math.min(top, points.size));
+        long[] ids = new long[capacity];
+        double[] distances = new double[capacity];
+        int count = nearest(id, top, ids, distances);
+        for (int i = 0; i < count; i++) {
+            System.out.printf("%d. %d -> %.3f%n", i + 1, ids[i], distances[i]);
+        }
     }
 }
 
-class Point2D implements Clusterable<Point2D> {
+class Point2D implements PlanarClusterable<Point2D> {
     private long id;
     private float x;
     private float y;
@@ -52,17 +648,200 @@ class Point2D implements Clusterable<Point2D> {
         return id;
     }
 
+    @Override
+    public float getX() {
+        return x;
+    }
+
+    @Override
+    public float getY() {
+        return y;
+    }
+
     @Override
     public double distance(Point2D other) {
-        return Math.sqrt(Math.pow((this.x-other.x),2) + Math.pow((this.y-other.y),2));
+        double dx = this.x - other.x;
+        double dy = this.y - other.y;
+        return Math.sqrt(dx * dx + dy * dy);
     }
 
 }
 
+class ClusterBenchmark {
+    private static final int K = 10;
+    private static final int SORT_QUERIES = 5;
+    private static final int INDEX_QUERIES = 10_000;
+
+    // what Cluster.near used to do: sort everything by distance to the target
+    static List<Long> fullSort(List<Point2D> points, Point2D target, int k) {
+        return points.stream()
+                .filter(item -> item.getId() != target.getId())
+                .sorted(Comparator.comparingDouble(target::distance).thenComparingLong(Point2D::getId))
+                .limit(k)
+                .map(Point2D::getId)
+                .collect(Collectors.toList());
+    }
+
+    static List<Long> ids(List<Neighbour<Point2D>> neighbours) {
+        List<Long> ids = new ArrayList<>(neighbours.size());
+        for (Neighbour<Point2D> neighbour : neighbours) ids.add(neighbour.item.getId());
+        return ids;
+    }
+
+    static void runIndex(String name, Function<List<Point2D>, SpatialIndex<Point2D>> builder,
+                         List<Point2D> points, List<List<Long>> expected, double sortMillis) {
+        long start = System.nanoTime();
+        SpatialIndex<Point2D> index = builder.apply(points);
+        double buildMillis = (System.nanoTime() - start) / 1e6;
+
+        for (int q = 0; q < SORT_QUERIES; q++) {
+            Point2D target = points.get(q);
+            if (!ids(index.nearest(target, K, target.getId())).equals(expected.get(q)))
+                throw new RuntimeException("ERROR: " + name + " disagrees with the full sort for point " + target.getId());
+        }
+
+        start = System.nanoTime();
+        long checksum = 0;
+        for (int q = 0; q < INDEX_QUERIES; q++) {
+            Point2D target = points.get(q % points.size());
+            checksum += index.nearest(target, K, target.getId()).size();
+        }
+        double queryMillis = (System.nanoTime() - start) / 1e6 / INDEX_QUERIES;
+        if (checksum == 0) throw new RuntimeException("ERROR: " + name + " found nothing");
+        System.out.printf("%-10s build %,9.0f ms   query %,10.4f ms   %,10.0fx faster than sorting%n",
+                name, buildMillis, queryMillis, sortMillis / queryMillis);
+    }
+
+    // asking for no neighbours, or fewer than none, finds none instead of failing
+    static void checkNoNeighbours(List<Point2D> points) {
+        List<Point2D> few = points.subList(0, Math.min(100, points.size()));
+        Cluster<Point2D> cluster = new Cluster<>();
+        PointCluster pointCluster = new PointCluster();
+        for (Point2D point : few) {
+            cluster.addItem(point);
+            pointCluster.addItem(point);
+        }
+        Point2D target = few.get(0);
+        for (int k : new int[]{0, -1}) {
+            if (!new KdTree<>(few).nearest(target, k, target.getId()).isEmpty()
+                    || !new VantagePointTree<>(few).nearest(target, k, target.getId()).isEmpty()
+                    || !cluster.nearest(target.getId(), k).isEmpty()
+                    || pointCluster.nearest(target.getId(), k, new long[0], new double[0]) != 0)
+                throw new RuntimeException("ERROR: Asking for " + k + " neighbours found some");
+            cluster.near(target.getId(), k);
+            pointCluster.near(target.getId(), k);
+        }
+    }
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random random = new Random(42);
+        List<Point2D> points = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            points.add(new Point2D(i, random.nextFloat() * 10_000, random.nextFloat() * 10_000));
+        }
+
+        checkNoNeighbours(points);
+
+        List<List<Long>> expected = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int q = 0; q < SORT_QUERIES; q++) expected.add(fullSort(points, points.get(q), K));
+        double sortMillis = (System.nanoTime() - start) / 1e6 / SORT_QUERIES;
+        System.out.printf("%,d points, %d nearest%n", n, K);
+        System.out.printf("%-10s %23s query %,10.4f ms%n", "full sort", "", sortMillis);
+
+        runIndex("kd-tree", KdTree::new, points, expected, sortMillis);
+        runIndex("vp-tree", VantagePointTree::new, points, expected, sortMillis);
+    }
+}
+
+class PointLayoutBenchmark {
+    private static final int REPEATS = 5;
+    private static final int CHUNK = 4096;
+
+    // Point2D.distance as it was, with Math.pow
+    static double powDistance(Point2D a, Point2D b) {
+        return Math.sqrt(Math.pow((a.getX() - b.getX()), 2) + Math.pow((a.getY() - b.getY()), 2));
+    }
+
+    static double objectsPow(List<Point2D> points, Point2D target) {
+        double sum = 0;
+        for (Point2D point : points) sum += powDistance(target, point);
+        return sum;
+    }
+
+    static double objects(List<Point2D> points, Point2D target) {
+        double sum = 0;
+        for (Point2D point : points) {
+            double dx = target.getX() - point.getX();
+            double dy = target.getY() - point.getY();
+            sum += dx * dx + dy * dy;
+        }
+        return sum;
+    }
+
+    static double store(PointStore points, float qx, float qy, double[] buffer) {
+        double sum = 0;
+        for (int from = 0; from < points.size; from += CHUNK) {
+            int to = Math.min(points.size, from + CHUNK);
+            points.squaredDistances(from, to, qx, qy, buffer);
+            for (int i = 0; i < to - from; i++) sum += buffer[i];
+        }
+        return sum;
+    }
+
+    interface Scan {
+        double run();
+    }
+
+    // best of REPEATS, in nanoseconds per point
+    static double measure(int n, Scan scan) {
+        long best = Long.MAX_VALUE;
+        double first = 0;
+        for (int i = 0; i < REPEATS; i++) {
+            long start = System.nanoTime();
+            double result = scan.run();
+            best = Math.min(best, System.nanoTime() - start);
+            if (i == 0) first = result;
+            else if (Double.compare(result, first) != 0)
+                throw new RuntimeException("ERROR: Repeated scan returned " + result + ", first run " + first);
+        }
+        return (double) best / n;
+    }
+
+    static void run(int n) {
+        Random random = new Random(42);
+        List<Point2D> objects = new ArrayList<>(n);
+        PointStore store = new PointStore(n);
+        for (int i = 0; i < n; i++) {
+            float x = random.nextFloat() * 10_000;
+            float y = random.nextFloat() * 10_000;
+            objects.add(new Point2D(i, x, y));
+            store.add(i, x, y);
+        }
+        // objects reached through a map are not laid out in order in memory
+        Collections.shuffle(objects, random);
+        Point2D target = objects.get(0);
+        double[] buffer = new double[CHUNK];
+
+        if (Math.abs(objects(objects, target) - store(store, target.getX(), target.getY(), buffer)) > 1e-6 * objects(objects, target))
+            throw new RuntimeException("ERROR: Layouts disagree");
+        System.out.printf("%,12d points   objects+pow %6.2f ns/point   objects %6.2f ns/point   store %6.2f ns/point%n", n,
+                measure(n, () -> objectsPow(objects, target)),
+                measure(n, () -> objects(objects, target)),
+                measure(n, () -> store(store, target.getX(), target.getY(), buffer)));
+    }
+
+    public static void main(String[] args) {
+        run(1_000_000);
+        run(10_000_000);
+    }
+}
+
 public class ClusterTest {
     public static void main(String[] args) {
         Scanner scanner = new Scanner(System.in);
-        Cluster<Point2D> cluster = new Cluster<>();
+        PointCluster cluster = new PointCluster();
         int n = scanner.nextInt();
         scanner.nextLine();
         for (int i = 0; i < n; ++i) {
@@ -71,7 +850,7 @@ public class ClusterTest {
             long id = Long.parseLong(parts[0]);
             float x = Float.parseFloat(parts[1]);
             float y = Float.parseFloat(parts[2]);
-            cluster.addItem(new Point2D(id, x, y));
+            cluster.addItem(id, x, y);
         }
         int id = scanner.nextInt();
         int top = scanner.nextInt();
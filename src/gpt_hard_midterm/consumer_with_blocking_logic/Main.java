@@ -1,50 +1,276 @@
 package gpt_hard_midterm.consumer_with_blocking_logic;
 
+import concurrent_stats.LatencyHistogram;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * How a producer or consumer waits while the buffer is full or empty.
+ */
+interface WaitStrategy {
+    /**
+     * Called while {@code ready} is false; {@code attempts} counts the calls for this operation.
+     */
+    void await(int attempts, BooleanSupplier ready) throws InterruptedException;
+
+    /**
+     * Called after every put or get so blocked threads can re-check the buffer.
+     */
+    void signalAll();
+}
+
+class SpinningWaitStrategy implements WaitStrategy {
+    @Override
+    public void await(int attempts, BooleanSupplier ready) throws InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+        Thread.onSpinWait();
+    }
+
+    @Override
+    public void signalAll() {
+    }
+}
+
+class YieldingWaitStrategy implements WaitStrategy {
+    private static final int SPIN_TRIES = 100;
 
+    @Override
+    public void await(int attempts, BooleanSupplier ready) throws InterruptedException {
+        if (Thread.interrupted()) throw new InterruptedException();
+        if (attempts < SPIN_TRIES) Thread.onSpinWait();
+        else Thread.yield();
+    }
+
+    @Override
+    public void signalAll() {
+    }
+}
+
+class BlockingWaitStrategy implements WaitStrategy {
+    private final Lock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    // lets signalAll skip the lock when nobody is parked
+    private volatile int waiters = 0;
+
+    @Override
+    public void await(int attempts, BooleanSupplier ready) throws InterruptedException {
+        lock.lock();
+        try {
+            waiters++;
+            try {
+                while (!ready.getAsBoolean()) {
+                    changed.await();
+                }
+            } finally {
+                waiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void signalAll() {
+        if (waiters == 0) return;
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+/**
+ * Bounded multi-producer multi-consumer ring buffer of ints.
+ * <p>
+ * Every slot carries a sequence number, as in the Disruptor: a slot at position p is free for
+ * the producer that claims p when its sequence is p, and holds a value for the consumer that
+ * claims p when its sequence is p + 1. Producers and consumers claim positions with a CAS on
+ * their own cursor, so they only contend with each other and never take a lock, unless the
+ * blocking wait strategy has to park them. The capacity is rounded up to a power of two.
+ */
 class Buffer{
+    private static final long EMPTY = Long.MIN_VALUE;
+
     private final int[] storage;
-    private int size = 0;
-    private int head = 0;
-    private int tail = 0;
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final WaitStrategy waitStrategy;
 
     public Buffer(int capacity) {
-        this.storage = new int[capacity];
+        this(capacity, new BlockingWaitStrategy());
+    }
+
+    public Buffer(int capacity, WaitStrategy waitStrategy) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.storage = new int[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    public int capacity() {
+        return storage.length;
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, storage.length));
     }
+
     public void put(int value) throws InterruptedException {
-        lock.writeLock().lock();
-        try {
-            while (size == storage.length) {
-                wait(); // buffer full, producer waits
-            }
-            storage[tail] = value;
-            tail = (tail + 1) % storage.length;
-            size++;
-            notifyAll(); // tell consumers there is data
-        }finally {
-            lock.writeLock().unlock();
+        int attempts = 0;
+        while (!offer(value)) {
+            waitStrategy.await(attempts++, this::hasSpace);
         }
     }
+
     public int get() throws InterruptedException {
-        lock.readLock().lock();
-        try {
-            while (size == 0) {
-                wait(); // buffer empty, consumer waits
+        int attempts = 0;
+        long value;
+        while ((value = take()) == EMPTY) {
+            waitStrategy.await(attempts++, this::hasData);
+        }
+        return (int) value;
+    }
+
+    public boolean offer(int value) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    storage[index] = value;
+                    sequences.set(index, pos + 1);
+                    waitStrategy.signalAll();
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // the consumer of the previous lap has not freed the slot yet
+            }
+        }
+    }
+
+    /**
+     * Puts all values in order, waiting for space as needed and claiming as many free slots as possible per CAS.
+     */
+    public void putAll(int[] values) throws InterruptedException {
+        int done = 0;
+        int attempts = 0;
+        while (done < values.length) {
+            int claimed = offerBatch(values, done, values.length - done);
+            if (claimed == 0) {
+                waitStrategy.await(attempts++, this::hasSpace);
+            } else {
+                done += claimed;
+                attempts = 0;
+            }
+        }
+    }
+
+    private int offerBatch(int[] values, int from, int count) {
+        while (true) {
+            long pos = tail.get();
+            int free = 0;
+            while (free < count && sequences.get((int) (pos + free) & mask) == pos + free) {
+                free++;
+            }
+            if (free == 0) {
+                if (sequences.get((int) pos & mask) - pos < 0) return 0;
+                continue;
+            }
+            if (tail.compareAndSet(pos, pos + free)) {
+                for (int i = 0; i < free; i++) {
+                    int index = (int) (pos + i) & mask;
+                    storage[index] = values[from + i];
+                    sequences.set(index, pos + i + 1);
+                }
+                waitStrategy.signalAll();
+                return free;
+            }
+        }
+    }
+
+    /**
+     * Moves up to {@code max} available values into {@code target} without waiting and returns how many were moved.
+     */
+    public int drainTo(int[] target, int max) {
+        max = Math.min(max, target.length);
+        if (max <= 0) return 0;
+        while (true) {
+            long pos = head.get();
+            int ready = 0;
+            while (ready < max && sequences.get((int) (pos + ready) & mask) == pos + ready + 1) {
+                ready++;
+            }
+            if (ready == 0) {
+                if (sequences.get((int) pos & mask) - (pos + 1) < 0) return 0;
+                continue;
+            }
+            if (head.compareAndSet(pos, pos + ready)) {
+                for (int i = 0; i < ready; i++) {
+                    int index = (int) (pos + i) & mask;
+                    target[i] = storage[index];
+                    sequences.set(index, pos + i + storage.length);
+                }
+                waitStrategy.signalAll();
+                return ready;
+            }
+        }
+    }
+
+    // the value, or EMPTY when there is nothing to take
+    private long take() {
+        while (true) {
+            long pos = head.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    int value = storage[index];
+                    sequences.set(index, pos + storage.length);
+                    waitStrategy.signalAll();
+                    return value;
+                }
+            } else if (diff < 0) {
+                return EMPTY; // the producer of this position has not published yet
             }
-            int value = storage[head];
-            head = (head + 1) % storage.length;
-            size--;
-            notifyAll(); // tell producers there is space
-            return value;
-        }finally {
-            lock.readLock().unlock();
         }
     }
+
+    private boolean hasSpace() {
+        long pos = tail.get();
+        return sequences.get((int) pos & mask) - pos >= 0;
+    }
+
+    private boolean hasData() {
+        long pos = head.get();
+        return sequences.get((int) pos & mask) - (pos + 1) >= 0;
+    }
 }
 class Producer implements Runnable{
     private Buffer buffer;
@@ -72,6 +298,115 @@ class Consumer implements Runnable{
 
     }
 }
+class BufferBenchmark {
+    private static final int ITEMS = 2_000_000;
+    private static final int CAPACITY = 1024;
+    private static final int BATCH = 64;
+
+    // each item is its own index, so the consumer can look up when it was sent
+    static void run(String name, Supplier<WaitStrategy> strategy, int producers, int consumers, boolean batched)
+            throws InterruptedException, ExecutionException {
+        Buffer buffer = new Buffer(CAPACITY, strategy.get());
+        long[] sentAt = new long[ITEMS];
+        LatencyHistogram latency = new LatencyHistogram();
+        boolean[] seen = new boolean[ITEMS];
+        int perProducer = ITEMS / producers;
+        int total = perProducer * producers;
+
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int first = p * perProducer;
+            tasks.add(() -> {
+                int[] batch = new int[BATCH];
+                for (int i = first; i < first + perProducer; ) {
+                    if (batched) {
+                        int n = Math.min(BATCH, first + perProducer - i);
+                        long now = System.nanoTime();
+                        for (int j = 0; j < n; j++) {
+                            sentAt[i + j] = now;
+                            batch[j] = i + j;
+                        }
+                        buffer.putAll(n == BATCH ? batch : Arrays.copyOf(batch, n));
+                        i += n;
+                    } else {
+                        sentAt[i] = System.nanoTime();
+                        buffer.put(i++);
+                    }
+                }
+                return 0;
+            });
+        }
+        // consumers split the total between them and stop once they got their share
+        int perConsumer = total / consumers;
+        for (int c = 0; c < consumers; c++) {
+            int share = c == consumers - 1 ? total - perConsumer * (consumers - 1) : perConsumer;
+            tasks.add(() -> {
+                int[] batch = new int[BATCH];
+                int received = 0;
+                while (received < share) {
+                    if (batched) {
+                        int n = buffer.drainTo(batch, Math.min(BATCH, share - received));
+                        if (n == 0) {
+                            batch[0] = buffer.get();
+                            n = 1;
+                        }
+                        long now = System.nanoTime();
+                        for (int j = 0; j < n; j++) {
+                            latency.record(now - sentAt[batch[j]]);
+                            seen[batch[j]] = true;
+                        }
+                        received += n;
+                    } else {
+                        int value = buffer.get();
+                        latency.record(System.nanoTime() - sentAt[value]);
+                        seen[value] = true;
+                        received++;
+                    }
+                }
+                return received;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(producers + consumers);
+        long start = System.nanoTime();
+        try {
+            for (Future<Integer> f : executor.invokeAll(tasks)) f.get();
+        } finally {
+            executor.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        for (int i = 0; i < total; i++) {
+            if (!seen[i]) throw new RuntimeException("ERROR: Item " + i + " was lost");
+        }
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf("%-9s %dP/%dC %-7s %,14.0f items/s   p50 %,9d ns   p99 %,11d ns%n",
+                name, producers, consumers, batched ? "batch" : "single",
+                total * 1_000_000_000.0 / elapsed, snapshot.quantile(0.5), snapshot.quantile(0.99));
+    }
+
+    public static void main(String[] args) throws Exception {
+        // an empty target or batch size must return at once, even with data waiting
+        Buffer edge = new Buffer(4, new BlockingWaitStrategy());
+        edge.put(7);
+        if (edge.drainTo(new int[0], 10) != 0 || edge.drainTo(new int[4], 0) != 0 || edge.drainTo(new int[4], -1) != 0
+                || edge.drainTo(new int[4], 4) != 1)
+            throw new RuntimeException("ERROR: drainTo with no room moved values or did not return");
+
+        int[][] shapes = {{1, 1}, {2, 2}, {4, 4}};
+        for (int[] shape : shapes) {
+            for (boolean batched : new boolean[]{false, true}) {
+                run("blocking", BlockingWaitStrategy::new, shape[0], shape[1], batched);
+                run("yielding", YieldingWaitStrategy::new, shape[0], shape[1], batched);
+                if (shape[0] + shape[1] <= Runtime.getRuntime().availableProcessors()) {
+                    // spinning only makes sense with a core per thread
+                    run("spinning", SpinningWaitStrategy::new, shape[0], shape[1], batched);
+                }
+            }
+        }
+    }
+}
+
 public class Main {
     public static void main(String[] args) {
         Scanner sc = new Scanner(System.in);
@@ -1,19 +1,118 @@
 package gpt_hard_midterm.decorator_pattern_with_concurrent_logging;
 
+import concurrent_stats.LatencyHistogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * A log call on its way down the decorator chain. Decorators only add raw prefix fields;
+ * the text is put together by whoever finally writes the record.
+ */
+class LogRecord {
+    private static final byte TIMESTAMP = 0;
+    private static final byte THREAD_NAME = 1;
+
+    String message;
+    // prefixes in the order the decorators added them
+    private int prefixes;
+    private byte[] kinds = new byte[4];
+    private long[] numbers = new long[4];
+    private String[] texts = new String[4];
+
+    void reset(String message) {
+        this.message = message;
+        Arrays.fill(texts, 0, prefixes, null);
+        prefixes = 0;
+    }
+
+    void addTimestamp(long millis) {
+        add(TIMESTAMP, millis, null);
+    }
+
+    void addThreadName(String name) {
+        add(THREAD_NAME, 0, name);
+    }
+
+    private void add(byte kind, long number, String text) {
+        if (prefixes == kinds.length) {
+            kinds = Arrays.copyOf(kinds, prefixes * 2);
+            numbers = Arrays.copyOf(numbers, prefixes * 2);
+            texts = Arrays.copyOf(texts, prefixes * 2);
+        }
+        kinds[prefixes] = kind;
+        numbers[prefixes] = number;
+        texts[prefixes] = text;
+        prefixes++;
+    }
+
+    void copyFrom(LogRecord other) {
+        reset(other.message);
+        for (int i = 0; i < other.prefixes; i++) add(other.kinds[i], other.numbers[i], other.texts[i]);
+    }
+
+    // each decorator put its prefix in front of what the ones inside it will see, so the last added comes first
+    void appendTo(StringBuilder out) {
+        for (int i = prefixes - 1; i >= 0; i--) {
+            if (kinds[i] == TIMESTAMP) out.append(numbers[i]).append(' ');
+            else out.append('[').append(texts[i]).append("] ");
+        }
+        out.append(message);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        appendTo(out);
+        return out.toString();
+    }
+}
 
 // component
 interface Logger {
     void log(String message);
+
+    /**
+     * The record belongs to the caller, which reuses it for its next log call.
+     * An implementation that keeps the record past returning must copy it.
+     */
+    void log(LogRecord record);
 }
 
 // base decorator
 abstract class LoggerDecorator implements Logger {
+    // one draft per thread, so a log call through the chain allocates nothing
+    private static final ThreadLocal<LogRecord> DRAFTS = ThreadLocal.withInitial(LogRecord::new);
+
     protected final Logger source;
 
     public LoggerDecorator(Logger source) {
@@ -22,21 +121,230 @@ abstract class LoggerDecorator implements Logger {
 
     @Override
     public void log(String message) {
-        source.log(message);
+        LogRecord draft = DRAFTS.get();
+        draft.reset(message);
+        log(draft);
     }
+
+    @Override
+    public void log(LogRecord record) {
+        decorate(record);
+        source.log(record);
+    }
+
+    protected abstract void decorate(LogRecord record);
 }
 
 // concrete component
 class BasicLogger implements Logger {
-    private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final PrintStream out;
+
+    public BasicLogger() {
+        this(System.out);
+    }
+
+    public BasicLogger(PrintStream out) {
+        this.out = out;
+    }
+
+    // println already writes each line under the stream's own lock
+    @Override
+    public void log(String message) {
+        out.println(message);
+    }
+
+    @Override
+    public void log(LogRecord record) {
+        out.println(record);
+    }
+}
+
+/**
+ * Logger that hands records to a single background writer instead of writing on the caller's thread.
+ * <p>
+ * Records live in a preallocated ring and are reused. Every slot carries a sequence number,
+ * as in the Disruptor: a caller claims a slot with a CAS on the tail, copies its record into it
+ * and publishes it by advancing the slot's sequence, so callers never take a lock. The writer
+ * renders every record it finds ready into one buffer and writes it to the channel in a single
+ * call. A caller that finds the ring full waits for the writer to catch up.
+ * <p>
+ * If writing fails the writer stops, and every later log call and {@code close} throw the failure.
+ */
+class AsyncLogger implements Logger, AutoCloseable {
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final int SPIN_TRIES = 100;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final LogRecord[] records;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // callers between claim and publish, so the writer does not stop before their records are in
+    private final AtomicInteger producers = new AtomicInteger();
+    private final WritableByteChannel out;
+    private final Thread writer;
+    private volatile boolean writerParked = false;
+    private volatile boolean closed = false;
+    private volatile IOException failure;
+
+    // used only by the writer thread
+    private long head = 0;
+    private final StringBuilder line = new StringBuilder();
+    private char[] chars = new char[256];
+    private CharBuffer pending = CharBuffer.wrap(chars);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer bytes = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+    public AsyncLogger(int capacity) {
+        this(capacity, Channels.newChannel(new FileOutputStream(FileDescriptor.out)));
+    }
+
+    public AsyncLogger(int capacity, WritableByteChannel out) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.records = new LogRecord[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            records[i] = new LogRecord();
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.out = out;
+        this.writer = new Thread(this::writeLoop, "async-logger");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
     @Override
     public void log(String message) {
-        lock.writeLock().lock();
+        long pos = claim();
+        records[(int) pos & mask].reset(message);
+        publish(pos);
+    }
+
+    @Override
+    public void log(LogRecord record) {
+        long pos = claim();
+        records[(int) pos & mask].copyFrom(record);
+        publish(pos);
+    }
+
+    private long claim() {
+        producers.incrementAndGet();
+        if (closed) {
+            producers.decrementAndGet();
+            throw new IllegalStateException("Logger is closed");
+        }
+        int attempts = 0;
+        while (true) {
+            if (failure != null) {
+                producers.decrementAndGet();
+                throw new UncheckedIOException("Log writer failed", failure);
+            }
+            long pos = tail.get();
+            long diff = sequences.get((int) pos & mask) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) return pos;
+            } else if (diff < 0) {
+                // the ring is full until the writer frees this slot
+                wakeWriter();
+                if (attempts++ < SPIN_TRIES) Thread.onSpinWait();
+                else Thread.yield();
+            }
+        }
+    }
+
+    private void publish(long pos) {
+        sequences.set((int) pos & mask, pos + 1);
+        producers.decrementAndGet();
+        wakeWriter();
+    }
+
+    private void wakeWriter() {
+        if (writerParked) LockSupport.unpark(writer);
+    }
+
+    private boolean ready() {
+        return sequences.get((int) head & mask) == head + 1;
+    }
+
+    private void writeLoop() {
         try {
-            System.out.println(message);
-        } finally {
-            lock.writeLock().unlock();
+            while (true) {
+                if (ready()) {
+                    writeBatch();
+                } else if (closed && producers.get() == 0 && head == tail.get()) {
+                    return;
+                } else {
+                    writerParked = true;
+                    // a caller publishing from here on sees the flag and unparks us; the re-check catches the rest
+                    if (!ready() && !closed) LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    writerParked = false;
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        while (ready()) {
+            int index = (int) head & mask;
+            LogRecord record = records[index];
+            line.setLength(0);
+            record.appendTo(line);
+            line.append('\n');
+            record.reset(null);
+            // the slot is free for the producer one lap ahead
+            sequences.set(index, head + records.length);
+            head++;
+            encode(line);
+        }
+        flush();
+    }
+
+    private void encode(StringBuilder text) throws IOException {
+        int length = text.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+            pending = CharBuffer.wrap(chars);
         }
+        text.getChars(0, length, chars, 0);
+        pending.limit(length).position(0);
+        while (true) {
+            CoderResult result = encoder.encode(pending, bytes, true);
+            if (!result.isOverflow()) break;
+            flush();
+        }
+        encoder.reset();
+    }
+
+    private void flush() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) out.write(bytes);
+        bytes.clear();
+    }
+
+    /**
+     * Writes out every record logged so far and stops the writer. Log calls already under way
+     * finish first; later ones throw.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                writer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (failure != null) throw new UncheckedIOException("Log writer failed", failure);
     }
 }
 
@@ -47,9 +355,8 @@ class TimestampLogger extends LoggerDecorator {
     }
 
     @Override
-    public void log(String message) {
-        String decoratedMessage = System.currentTimeMillis() + " " + message +  "\n";
-        super.log(decoratedMessage);
+    protected void decorate(LogRecord record) {
+        record.addTimestamp(System.currentTimeMillis());
     }
 }
 
@@ -60,9 +367,8 @@ class ThreadNameLogger extends LoggerDecorator {
     }
 
     @Override
-    public void log(String message) {
-        String decoratedMessage = "[" + Thread.currentThread().getName() + "] " + message + "\n";
-        super.log(decoratedMessage);
+    protected void decorate(LogRecord record) {
+        record.addThreadName(Thread.currentThread().getName());
     }
 }
 
@@ -80,12 +386,163 @@ class LogTask implements Runnable {
        logger.log(message);
     }
 }
+class LoggerBenchmark {
+    private static final int TOTAL_CALLS = 400_000;
+    private static final String[] MESSAGES = new String[1000];
+
+    static {
+        for (int i = 0; i < MESSAGES.length; i++) MESSAGES[i] = "MESSAGE_" + i;
+    }
+
+    // every caller measures how long its own log calls take
+    static void run(String name, Logger backend, int threads, Path file) throws Exception {
+        Logger logger = new ThreadNameLogger(new TimestampLogger(backend));
+        LatencyHistogram latency = new LatencyHistogram();
+        int perThread = TOTAL_CALLS / threads;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            tasks.add(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    long start = System.nanoTime();
+                    logger.log(MESSAGES[i % MESSAGES.length]);
+                    latency.record(System.nanoTime() - start);
+                }
+                return null;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            for (Future<Void> f : executor.invokeAll(tasks)) f.get();
+        } finally {
+            executor.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (backend instanceof AsyncLogger async) async.close();
+
+        long lines;
+        try (var stream = Files.lines(file)) {
+            lines = stream.count();
+        }
+        if (lines != (long) perThread * threads)
+            throw new RuntimeException("ERROR: " + name + " wrote " + lines + " lines, expected " + perThread * threads);
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf("%-6s %3d threads %,12.0f calls/s   p50 %,8d ns   p99 %,10d ns%n",
+                name, threads, perThread * threads * 1e9 / elapsed, snapshot.quantile(0.5), snapshot.quantile(0.99));
+    }
+
+    // each decorator prefixes what the ones inside it print, in chain order and once per wrap
+    static void checkChainOrder() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BasicLogger backend = new BasicLogger(new PrintStream(bytes, true));
+        new ThreadNameLogger(new TimestampLogger(backend)).log("first");
+        new TimestampLogger(new ThreadNameLogger(new ThreadNameLogger(backend))).log("second");
+        String thread = Pattern.quote("[" + Thread.currentThread().getName() + "]");
+        String[] lines = bytes.toString().split("\\R");
+        if (!lines[0].matches("\\d+ " + thread + " first"))
+            throw new RuntimeException("ERROR: Chain order lost: " + lines[0]);
+        if (!lines[1].matches(thread + " " + thread + " \\d+ second"))
+            throw new RuntimeException("ERROR: Chain order lost: " + lines[1]);
+    }
+
+    // a channel that fails must not leave callers waiting on a full ring
+    static void checkFailedWriter() throws Exception {
+        WritableByteChannel broken = new WritableByteChannel() {
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+        AsyncLogger logger = new AsyncLogger(4, broken);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> failed = executor.submit(() -> {
+                try {
+                    for (int i = 0; i < 1000; i++) logger.log(MESSAGES[i % MESSAGES.length]);
+                    return false;
+                } catch (UncheckedIOException e) {
+                    return true;
+                }
+            });
+            if (!failed.get(10, TimeUnit.SECONDS)) throw new RuntimeException("ERROR: Logging kept going after the writer failed");
+        } catch (TimeoutException e) {
+            throw new RuntimeException("ERROR: Logging hung after the writer failed");
+        } finally {
+            executor.shutdownNow();
+        }
+        try {
+            logger.close();
+            throw new RuntimeException("ERROR: close did not report the failed writer");
+        } catch (UncheckedIOException expected) {
+        }
+    }
+
+    // every call that close lets through must end up in the output
+    static void checkCloseRace(int threads) throws Exception {
+        for (int round = 0; round < 20; round++) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            AsyncLogger logger = new AsyncLogger(64, Channels.newChannel(bytes));
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<Integer>> logged = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                logged.add(executor.submit(() -> {
+                    int calls = 0;
+                    try {
+                        while (true) {
+                            logger.log(MESSAGES[calls % MESSAGES.length]);
+                            calls++;
+                        }
+                    } catch (IllegalStateException closed) {
+                        return calls;
+                    }
+                }));
+            }
+            Thread.sleep(5);
+            logger.close();
+            long expected = 0;
+            for (Future<Integer> f : logged) expected += f.get();
+            executor.shutdown();
+            long lines = bytes.toString().lines().count();
+            if (lines != expected)
+                throw new RuntimeException("ERROR: " + lines + " lines written, " + expected + " calls returned before close");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkChainOrder();
+        checkFailedWriter();
+        checkCloseRace(4);
+        Path file = Files.createTempFile("logger", ".log");
+        try {
+            for (int threads = 1; threads <= 32; threads *= 2) {
+                try (PrintStream out = new PrintStream(new FileOutputStream(file.toFile()), true)) {
+                    run("sync", new BasicLogger(out), threads, file);
+                }
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    run("async", new AsyncLogger(1 << 14, channel), threads, file);
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
+
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
+        AsyncLogger backend = new AsyncLogger(1024);
         Logger logger =
                 new ThreadNameLogger(
                         new TimestampLogger(
-                                new BasicLogger()
+                                backend
                         )
                 );
 
@@ -96,7 +553,9 @@ public class Main {
         }
         ExecutorService executor = Executors.newFixedThreadPool(5);
         tasks.forEach(executor::execute);
-
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        backend.close();
     }
 
 }
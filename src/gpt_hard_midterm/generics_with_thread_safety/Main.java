@@ -1,49 +1,141 @@
 package gpt_hard_midterm.generics_with_thread_safety;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
 interface Repository<T>{
     String print();
+    void print(Appendable out) throws IOException;
     int getSize();
     void add(T element);
 }
-class ConcurrentRepository<T> implements Repository<T>{
-    private final List<T> elements = new ArrayList<>();
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+/**
+ * Append-only list that never locks.
+ * <p>
+ * Elements live in segments of doubling size that are never moved or copied, so a segment
+ * is created once, with a CAS, and a slot is written once. An add claims its index with an
+ * atomic increment, writes its slot and then publishes elements in index order until its
+ * own is published; the size is the published count. An add therefore returns only after
+ * every add that claimed an earlier index has finished writing, and once it returns the
+ * element is in {@link #getSize()} and in every later snapshot. A snapshot is the segments plus the
+ * published count at one moment, and iterating it neither blocks nor is blocked by writers.
+ */
+class ConcurrentRepository<T> implements Repository<T>, Iterable<T> {
+    private static final int FIRST_SEGMENT_SHIFT = 4;
+    private static final int SEGMENTS = 32 - FIRST_SEGMENT_SHIFT;
+    private static final int SPIN_TRIES = 100;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<T>> segments = new AtomicReferenceArray<>(SEGMENTS);
+    private final AtomicInteger claimed = new AtomicInteger();
+    private final AtomicInteger published = new AtomicInteger();
+
+    // segment k holds indexes [16 * (2^k - 1), 16 * (2^(k+1) - 1))
+    private static int segmentOf(int index) {
+        int shifted = index + (1 << FIRST_SEGMENT_SHIFT);
+        return 31 - Integer.numberOfLeadingZeros(shifted) - FIRST_SEGMENT_SHIFT;
+    }
+
+    private static int offsetOf(int index, int segment) {
+        return index + (1 << FIRST_SEGMENT_SHIFT) - (1 << (segment + FIRST_SEGMENT_SHIFT));
+    }
+
+    private AtomicReferenceArray<T> segment(int k) {
+        AtomicReferenceArray<T> segment = segments.get(k);
+        if (segment == null) {
+            segments.compareAndSet(k, null, new AtomicReferenceArray<>(1 << (k + FIRST_SEGMENT_SHIFT)));
+            segment = segments.get(k);
+        }
+        return segment;
+    }
+
+    private T slot(int index) {
+        int k = segmentOf(index);
+        AtomicReferenceArray<T> segment = segments.get(k);
+        return segment == null ? null : segment.get(offsetOf(index, k));
+    }
 
     public void add(T element){
-        lock.writeLock().lock();
-        try{
-            elements.add(element);
-        }finally {
-            lock.writeLock().unlock();
+        Objects.requireNonNull(element, "element");
+        int index = claimed.getAndIncrement();
+        if (index < 0) throw new IllegalStateException("Repository is full");
+        int k = segmentOf(index);
+        segment(k).set(offsetOf(index, k), element);
+        // publish in index order, helping earlier adds that have finished writing, and
+        // return only once our own element is in, so the caller sees it in the size
+        int attempts = 0;
+        int p;
+        while ((p = published.get()) <= index) {
+            if (slot(p) != null) published.compareAndSet(p, p + 1);
+            else if (attempts++ < SPIN_TRIES) Thread.onSpinWait();
+            else Thread.yield();
         }
     }
+
+    /**
+     * The elements published so far; later adds do not show up in it.
+     */
+    public List<T> snapshot() {
+        int size = published.get();
+        return new AbstractList<>() {
+            @Override
+            public T get(int index) {
+                Objects.checkIndex(index, size);
+                int k = segmentOf(index);
+                return segments.get(k).get(offsetOf(index, k));
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return snapshot().iterator();
+    }
+
     @Override
     public String print() {
-        lock.readLock().lock();
-        try{
-            StringBuilder sb = new StringBuilder();
-            elements.forEach(element -> sb.append("PRINT: ").append(element).append("\n"));
-            return sb.toString();
-        }finally {
-            lock.readLock().unlock();
+        StringBuilder sb = new StringBuilder();
+        try {
+            print(sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder does not throw
         }
+        return sb.toString();
     }
 
+    /**
+     * Writes a snapshot one element at a time, without building the whole text first.
+     */
     @Override
-    public int getSize() {
-        lock.readLock().lock();
-        try{
-            return elements.size();
-        }finally {
-            lock.readLock().unlock();
+    public void print(Appendable out) throws IOException {
+        for (T element : this) {
+            out.append("PRINT: ").append(String.valueOf(element)).append("\n");
         }
     }
+
+    @Override
+    public int getSize() {
+        return published.get();
+    }
 }
 class AddTask<T> implements Callable<String>{
     private final Repository<T> repo;
@@ -94,6 +186,198 @@ class ExecutorClass{
         }
     }
 }
+// the repository as it was before: an ArrayList behind a read-write lock
+class LockedRepository<T> implements Repository<T> {
+    private final List<T> elements = new ArrayList<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public void add(T element) {
+        lock.writeLock().lock();
+        try {
+            elements.add(element);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String print() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            print(sb);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void print(Appendable out) throws IOException {
+        lock.readLock().lock();
+        try {
+            for (T element : elements) out.append("PRINT: ").append(String.valueOf(element)).append("\n");
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getSize() {
+        lock.readLock().lock();
+        try {
+            return elements.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
+
+class ListRepository<T> implements Repository<T> {
+    private final List<T> elements;
+
+    ListRepository(List<T> elements) {
+        this.elements = elements;
+    }
+
+    public void add(T element) {
+        elements.add(element);
+    }
+
+    @Override
+    public String print() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            print(sb);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return sb.toString();
+    }
+
+    // a synchronized list has to be locked for the whole iteration, a copy-on-write one does not
+    @Override
+    public void print(Appendable out) throws IOException {
+        synchronized (elements) {
+            for (T element : elements) out.append("PRINT: ").append(String.valueOf(element)).append("\n");
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return elements.size();
+    }
+}
+
+class RepositoryBenchmark {
+    // copy-on-write copies the whole array per add, so the total is kept small enough for it
+    private static final int TOTAL_ADDS = 100_000;
+
+    // discards what is printed, so only the cost of walking the repository is measured
+    static final Appendable NULL_OUT = new Appendable() {
+        @Override
+        public Appendable append(CharSequence csq) {
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) {
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) {
+            return this;
+        }
+    };
+
+    // writers add TOTAL_ADDS elements while one reader prints the repository over and over
+    static void run(String name, Supplier<Repository<Integer>> factory, int writers)
+            throws InterruptedException, ExecutionException {
+        Repository<Integer> repo = factory.get();
+        int perWriter = TOTAL_ADDS / writers;
+        AtomicBoolean done = new AtomicBoolean();
+        List<Callable<Long>> writerTasks = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int first = w * perWriter;
+            writerTasks.add(() -> {
+                for (int i = first; i < first + perWriter; i++) repo.add(i);
+                return 0L;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(writers + 1);
+        long elapsed;
+        long prints;
+        try {
+            Future<Long> reader = executor.submit(() -> {
+                long count = 0;
+                while (!done.get()) {
+                    repo.print(NULL_OUT);
+                    count++;
+                }
+                return count;
+            });
+            long start = System.nanoTime();
+            List<Future<Long>> futures = new ArrayList<>();
+            for (Callable<Long> task : writerTasks) futures.add(executor.submit(task));
+            for (Future<Long> f : futures) f.get();
+            elapsed = System.nanoTime() - start;
+            done.set(true);
+            prints = reader.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        if (repo.getSize() != perWriter * writers)
+            throw new RuntimeException("ERROR: " + name + " has " + repo.getSize() + " elements, expected " + perWriter * writers);
+        System.out.printf("%-14s %2d writers %,14.0f adds/s   %,6d prints alongside%n",
+                name, writers, perWriter * writers * 1e9 / elapsed, prints);
+    }
+
+    // once add returns, the element is in the size and in a snapshot taken on the same thread
+    static void checkAddVisible(int writers) throws Exception {
+        ConcurrentRepository<Integer> repo = new ConcurrentRepository<>();
+        int perWriter = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                int first = w * perWriter;
+                futures.add(executor.submit(() -> {
+                    for (int i = first; i < first + perWriter; i++) {
+                        repo.add(i);
+                        if (repo.getSize() < i - first + 1 || !endsWith(repo.snapshot(), i))
+                            throw new RuntimeException("ERROR: " + i + " not visible after add returned");
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> f : futures) f.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // looks for the element from the end, where a fresh add is
+    private static boolean endsWith(List<Integer> snapshot, int element) {
+        ListIterator<Integer> it = snapshot.listIterator(snapshot.size());
+        while (it.hasPrevious()) {
+            if (it.previous() == element) return true;
+        }
+        return false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkAddVisible(4);
+        for (int writers = 1; writers <= 8; writers *= 2) {
+            run("rw-lock", LockedRepository::new, writers);
+            run("synchronized", () -> new ListRepository<>(Collections.synchronizedList(new ArrayList<>())), writers);
+            run("copy-on-write", () -> new ListRepository<>(new CopyOnWriteArrayList<>()), writers);
+            run("segmented", ConcurrentRepository::new, writers);
+        }
+    }
+}
+
 public class Main {
     public static void main(String[] args) throws InterruptedException, ExecutionException {
         Repository<String> repo = new ConcurrentRepository<>();
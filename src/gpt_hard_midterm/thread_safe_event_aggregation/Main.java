@@ -1,55 +1,47 @@
 package gpt_hard_midterm.thread_safe_event_aggregation;
 
+import concurrent_stats.LatencyHistogram;
+import concurrent_stats.StatisticsAccumulator;
+import concurrent_stats.WindowedHistogram;
+
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 class EventStatisticsService{
-    private final IntSummaryStatistics cache = new IntSummaryStatistics();
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final StatisticsAccumulator statistics = new StatisticsAccumulator();
+    private final LatencyHistogram durations = new LatencyHistogram();
+    private final WindowedHistogram recentDurations = new WindowedHistogram();
 
     public void addDuration(int duration){
-        lock.writeLock().lock();
-        try{
-            cache.accept(duration);
-        }finally {
-            lock.writeLock().unlock();
+        statistics.add(duration);
+        // the histograms only take non-negative values, so negative durations stay out of the percentiles
+        if (duration >= 0) {
+            durations.record(duration);
+            recentDurations.record(duration);
         }
     }
 
     public int getCount(){
-        lock.readLock().lock();
-        try{
-            return Math.toIntExact(cache.getCount());
-        }finally {
-            lock.readLock().unlock();
-        }
+        return Math.toIntExact(statistics.snapshot().getCount());
     }
 
     public int min(){
-        lock.readLock().lock();
-        try{
-            return cache.getMin();
-        }finally {
-            lock.readLock().unlock();
-        }
+        StatisticsAccumulator.Snapshot snapshot = statistics.snapshot();
+        return snapshot.isEmpty() ? Integer.MAX_VALUE : (int) snapshot.getMin();
     }
     public int max(){
-        lock.readLock().lock();
-        try{
-            return cache.getMax();
-        }finally {
-            lock.readLock().unlock();
-        }
+        StatisticsAccumulator.Snapshot snapshot = statistics.snapshot();
+        return snapshot.isEmpty() ? Integer.MIN_VALUE : (int) snapshot.getMax();
     }
     public double average(){
-        lock.readLock().lock();
-        try{
-            return cache.getAverage();
-        }finally {
-            lock.readLock().unlock();
-        }
+        return statistics.snapshot().getAverage();
+    }
+    public long percentile(double quantile){
+        return durations.snapshot().quantile(quantile);
+    }
+    public long percentile(double quantile, Duration window){
+        return recentDurations.snapshot(window).quantile(quantile);
     }
 }
 class AddEventTask implements Callable<String>{
@@ -116,6 +108,19 @@ class AverageTask implements Callable<String>{
         return String.format("AVG %.2f", service.average());
     }
 }
+class PercentileTask implements Callable<String>{
+    private final EventStatisticsService service;
+
+    public PercentileTask(EventStatisticsService service) {
+        this.service = service;
+    }
+
+    @Override
+    public String call() throws Exception {
+        return String.format("P50 %d P95 %d P99 %d LAST5MIN_P99 %d\n", service.percentile(0.5),
+                service.percentile(0.95), service.percentile(0.99), service.percentile(0.99, Duration.ofMinutes(5)));
+    }
+}
 class ExecutorClass{
     public static List<Future<String>> execute(int threads, List<Callable<String>> tasks) throws InterruptedException {
         ExecutorService executor = Executors.newFixedThreadPool(threads);
@@ -143,6 +148,7 @@ public class Main {
             tasks.add(new MinTask(service));
             tasks.add(new MaxTask(service));
             tasks.add(new AverageTask(service));
+            tasks.add(new PercentileTask(service));
         }
         List<Future<String>> futures = ExecutorClass.execute(10, tasks);
 
@@ -1,6 +1,8 @@
 package labs.lab1.Bank;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -8,19 +10,34 @@ import java.util.stream.Collectors;
 class Account {
     private final String name;
     private final long ID;
-    private double balance;
+    private long balanceMicros;
     private final static Random randomGenerator = new Random();
 //    private static long nextID = 1;
 
     public Account(String name, double balance) {
         this.name = name;
-        this.balance = balance;
+        this.balanceMicros = toMicros(balance);
         this.ID = randomGenerator.nextInt(Integer.MAX_VALUE);
 //        this.ID = nextID++;
     }
 
+    // millionths of a dollar, so a percentage of any amount with up to four decimals stays exact
+    static final long MICROS_PER_DOLLAR = 1_000_000;
+
+    static long toMicros(double amount) {
+        return Math.round(amount * MICROS_PER_DOLLAR);
+    }
+
     public double getBalance() {
-        return balance;
+        return (double) balanceMicros / MICROS_PER_DOLLAR;
+    }
+
+    long getBalanceMicros() {
+        return balanceMicros;
+    }
+
+    void setBalanceMicros(long balanceMicros) {
+        this.balanceMicros = balanceMicros;
     }
 
     public String getName() {
@@ -32,12 +49,12 @@ class Account {
     }
 
     public void setBalance(double balance) {
-        this.balance = balance;
+        this.balanceMicros = toMicros(balance);
     }
 
     @Override
     public String toString() {
-        return String.format("Name: %s \nBalance: %.2f$ \n", name, balance);
+        return String.format("Name: %s \nBalance: %.2f$ \n", name, getBalance());
     }
 
     @Override
@@ -54,48 +71,198 @@ class Account {
     }
 }
 
+/**
+ * Open-addressing map from long keys to non-negative int values, with linear probing.
+ * It does not box keys, and a lookup is usually a single probe into a primitive array.
+ */
+class LongIndexMap {
+    private static final int MISSING = -1;
+
+    private final long[] keys;
+    private final int[] values;
+    private final int mask;
+
+    LongIndexMap(int expectedSize) {
+        // at most half full, so probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(2, expectedSize) * 2 - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, MISSING);
+        mask = capacity - 1;
+    }
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    void put(long key, int value) {
+        int i = slot(key);
+        while (values[i] != MISSING && keys[i] != key) i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * The value for the key, or -1 if it has none.
+     */
+    int get(long key) {
+        int i = slot(key);
+        while (values[i] != MISSING) {
+            if (keys[i] == key) return values[i];
+            i = (i + 1) & mask;
+        }
+        return MISSING;
+    }
+}
+
+/**
+ * Applies one wave of a batch: transactions whose accounts no other transaction in the wave touches,
+ * so they can run in any order and on any thread. Returns the micros transferred and charged.
+ */
+class WaveTask extends RecursiveTask<long[]> {
+    static final int THRESHOLD = 1024;
+
+    private final Bank bank;
+    private final int[] wave;
+    private final int from;
+    private final int to;
+    private final Transaction[] transactions;
+    private final int[] fromIndex;
+    private final int[] toIndex;
+    private final boolean[] results;
+
+    WaveTask(Bank bank, int[] wave, int from, int to, Transaction[] transactions,
+             int[] fromIndex, int[] toIndex, boolean[] results) {
+        this.bank = bank;
+        this.wave = wave;
+        this.from = from;
+        this.to = to;
+        this.transactions = transactions;
+        this.fromIndex = fromIndex;
+        this.toIndex = toIndex;
+        this.results = results;
+    }
+
+    @Override
+    protected long[] compute() {
+        if (to - from <= THRESHOLD) {
+            long[] totals = new long[2];
+            for (int i = from; i < to; i++) {
+                int t = wave[i];
+                results[t] = bank.apply(transactions[t], fromIndex[t], toIndex[t], totals);
+            }
+            return totals;
+        }
+        int mid = (from + to) >>> 1;
+        WaveTask left = new WaveTask(bank, wave, from, mid, transactions, fromIndex, toIndex, results);
+        left.fork();
+        long[] right = new WaveTask(bank, wave, mid, to, transactions, fromIndex, toIndex, results).compute();
+        long[] totals = left.join();
+        totals[0] += right[0];
+        totals[1] += right[1];
+        return totals;
+    }
+}
+
 class Bank {
 
     private final String name;
     private final Account[] accounts;
-    private double totalTransferred = 0;
-    private double totalProvision = 0;
+    private final LongIndexMap indexById;
+    private long totalTransferredMicros = 0;
+    private long totalProvisionMicros = 0;
 
     public Bank(String name, Account[] accounts) {
         this.name = name;
         this.accounts = Arrays.copyOf(accounts, accounts.length);
+        this.indexById = new LongIndexMap(accounts.length);
+        // like the lookup it replaces, the last account with a given id wins
+        for (int i = 0; i < this.accounts.length; i++) {
+            indexById.put(this.accounts[i].getId(), i);
+        }
     }
 
-    public boolean makeTransaction(Transaction t) {
-        Account from = null;
-        Account to = null;
-        for (Account account : accounts) {
-            if (account.getId() == t.getFromId()) {
-                from = account;
-            }
-            if (account.getId() == t.getToId()) {
-                to = account;
+    /**
+     * Moves the money for one transaction between the accounts at the given indexes and adds
+     * its amount and provision to totals[0] and totals[1].
+     */
+    boolean apply(Transaction t, int fromIndex, int toIndex, long[] totals) {
+        if (fromIndex < 0 || toIndex < 0) return false;
+        Account from = accounts[fromIndex];
+        Account to = accounts[toIndex];
+        long amount = t.getAmountMicros();
+        long provision = t.getProvisionMicros();
+
+        if (from.getBalanceMicros() < amount + provision) return false;
+
+        from.setBalanceMicros(from.getBalanceMicros() - amount - provision);
+        to.setBalanceMicros(to.getBalanceMicros() + amount);
+        totals[0] += amount;
+        totals[1] += provision;
+        return true;
+    }
+
+    public synchronized boolean makeTransaction(Transaction t) {
+        long[] totals = new long[2];
+        boolean success = apply(t, indexById.get(t.getFromId()), indexById.get(t.getToId()), totals);
+        totalTransferredMicros += totals[0];
+        totalProvisionMicros += totals[1];
+        return success;
+    }
+
+    /**
+     * Applies the transactions with the same outcome as calling makeTransaction on each in order.
+     * <p>
+     * Each transaction goes in the wave after the last one that touched either of its accounts,
+     * so every account sees its transactions in list order while a wave, which touches each
+     * account at most once, is split across the fork/join pool.
+     */
+    public synchronized boolean[] makeTransactions(List<Transaction> batch) {
+        int n = batch.size();
+        Transaction[] transactions = batch.toArray(new Transaction[0]);
+        int[] fromIndex = new int[n];
+        int[] toIndex = new int[n];
+        int[] waveOf = new int[n];
+        int[] lastWave = new int[accounts.length];
+        int waves = 0;
+        for (int t = 0; t < n; t++) {
+            fromIndex[t] = indexById.get(transactions[t].getFromId());
+            toIndex[t] = indexById.get(transactions[t].getToId());
+            if (fromIndex[t] < 0 || toIndex[t] < 0) {
+                waveOf[t] = -1;
+                continue;
             }
-        }
-        if (from == null || to == null) return false;
-        double provision = 0;
-        double total = t.getAmount();
-        if (t instanceof FlatAmountProvisionTransaction) {
-            provision = ((FlatAmountProvisionTransaction) t).getFlatProvision();
-            total += provision;
-        } else if (t instanceof FlatPercentProvisionTransaction) {
-            provision = t.getAmount() * ((FlatPercentProvisionTransaction) t).getCentsPerDolar() / 100.0;
-            total += provision;
+            int wave = Math.max(lastWave[fromIndex[t]], lastWave[toIndex[t]]) + 1;
+            lastWave[fromIndex[t]] = wave;
+            lastWave[toIndex[t]] = wave;
+            waveOf[t] = wave - 1;
+            waves = Math.max(waves, wave);
         }
 
-        if (from.getBalance() < total) return false;
-
-        from.setBalance(from.getBalance() - total);
-        to.setBalance(to.getBalance() + t.getAmount());
-        totalTransferred += t.getAmount();
-        totalProvision += provision;
+        // counting sort of the transactions by wave, keeping list order within a wave
+        int[] waveStart = new int[waves + 1];
+        for (int t = 0; t < n; t++) {
+            if (waveOf[t] >= 0) waveStart[waveOf[t] + 1]++;
+        }
+        for (int w = 0; w < waves; w++) waveStart[w + 1] += waveStart[w];
+        int[] order = new int[waveStart[waves]];
+        int[] next = Arrays.copyOf(waveStart, waves);
+        for (int t = 0; t < n; t++) {
+            if (waveOf[t] >= 0) order[next[waveOf[t]]++] = t;
+        }
 
-        return true;
+        boolean[] results = new boolean[n];
+        for (int w = 0; w < waves; w++) {
+            WaveTask task = new WaveTask(this, order, waveStart[w], waveStart[w + 1],
+                    transactions, fromIndex, toIndex, results);
+            // the long tail of small waves behind busy accounts is not worth handing to the pool
+            long[] totals = waveStart[w + 1] - waveStart[w] <= WaveTask.THRESHOLD
+                    ? task.compute() : ForkJoinPool.commonPool().invoke(task);
+            totalTransferredMicros += totals[0];
+            totalProvisionMicros += totals[1];
+        }
+        return results;
     }
 
     public void forEachConditional(Predicate<Account> predicate, Consumer<Account> consumer) {
@@ -107,11 +274,11 @@ class Bank {
     }
 
     double totalTransfers() {
-        return totalTransferred;
+        return (double) totalTransferredMicros / Account.MICROS_PER_DOLLAR;
     }
 
     double totalProvision() {
-        return totalProvision;
+        return (double) totalProvisionMicros / Account.MICROS_PER_DOLLAR;
     }
 
     @Override
@@ -131,12 +298,12 @@ class Bank {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Bank bank = (Bank) o;
-        return Double.compare(totalTransferred, bank.totalTransferred) == 0 && Double.compare(totalProvision, bank.totalProvision) == 0 && Objects.equals(name, bank.name) && Objects.deepEquals(accounts, bank.accounts);
+        return totalTransferredMicros == bank.totalTransferredMicros && totalProvisionMicros == bank.totalProvisionMicros && Objects.equals(name, bank.name) && Objects.deepEquals(accounts, bank.accounts);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(name, Arrays.hashCode(accounts), totalTransferred, totalProvision);
+        return Objects.hash(name, Arrays.hashCode(accounts), totalTransferredMicros, totalProvisionMicros);
     }
 
     public Account[] getAccounts() {
@@ -170,6 +337,14 @@ abstract class Transaction {
         return amount;
     }
 
+    long getAmountMicros() {
+        return Account.toMicros(amount);
+    }
+
+    long getProvisionMicros() {
+        return 0;
+    }
+
     public String getDescription() {
         return description;
     }
@@ -201,6 +376,11 @@ class FlatAmountProvisionTransaction extends Transaction {
         return flatProvision;
     }
 
+    @Override
+    long getProvisionMicros() {
+        return Account.toMicros(flatProvision);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -229,6 +409,11 @@ class FlatPercentProvisionTransaction extends Transaction {
         return centsPerDolar;
     }
 
+    @Override
+    long getProvisionMicros() {
+        return Math.round(getAmountMicros() * centsPerDolar / 100.0);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -244,6 +429,87 @@ class FlatPercentProvisionTransaction extends Transaction {
 
 }
 
+class BankBenchmark {
+    private static final int ACCOUNTS = 20_000;
+    private static final int TRANSACTIONS = 1_000_000;
+    private static final int SCANNED = 20_000;
+
+    static Account[] accounts() {
+        Account[] accounts = new Account[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) accounts[i] = new Account("Account " + i, 500.0);
+        return accounts;
+    }
+
+    static List<Transaction> transactions(Account[] accounts, Random random) {
+        List<Transaction> transactions = new ArrayList<>(TRANSACTIONS);
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            // a few busy accounts make for long dependency chains
+            long from = accounts[random.nextInt(10) == 0 ? random.nextInt(10) : random.nextInt(ACCOUNTS)].getId();
+            long to = accounts[random.nextInt(ACCOUNTS)].getId();
+            double amount = random.nextInt(10_000) / 100.0;
+            transactions.add(random.nextBoolean()
+                    ? new FlatAmountProvisionTransaction(from, to, amount, random.nextInt(300) / 100.0)
+                    : new FlatPercentProvisionTransaction(from, to, amount, random.nextInt(5)));
+        }
+        return transactions;
+    }
+
+    // what makeTransaction used to do to find the two accounts
+    static int linearScan(Account[] accounts, List<Transaction> transactions) {
+        int found = 0;
+        for (Transaction t : transactions) {
+            Account from = null;
+            Account to = null;
+            for (Account account : accounts) {
+                if (account.getId() == t.getFromId()) from = account;
+                if (account.getId() == t.getToId()) to = account;
+            }
+            if (from != null && to != null) found++;
+        }
+        return found;
+    }
+
+    public static void main(String[] args) {
+        Account[] accounts = accounts();
+        List<Transaction> transactions = transactions(accounts, new Random(42));
+
+        long start = System.nanoTime();
+        linearScan(accounts, transactions.subList(0, SCANNED));
+        double scanRate = SCANNED / ((System.nanoTime() - start) / 1e9);
+
+        Bank sequential = new Bank("sequential", accounts);
+        boolean[] expected = new boolean[TRANSACTIONS];
+        start = System.nanoTime();
+        for (int i = 0; i < TRANSACTIONS; i++) expected[i] = sequential.makeTransaction(transactions.get(i));
+        double sequentialRate = TRANSACTIONS / ((System.nanoTime() - start) / 1e9);
+
+        // both banks share the accounts, so reset them before the batch runs
+        long[] expectedBalances = new long[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            expectedBalances[i] = accounts[i].getBalanceMicros();
+            accounts[i].setBalance(500.0);
+        }
+        Bank batch = new Bank("batch", accounts);
+        start = System.nanoTime();
+        boolean[] results = batch.makeTransactions(transactions);
+        double batchRate = TRANSACTIONS / ((System.nanoTime() - start) / 1e9);
+
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            if (results[i] != expected[i]) throw new RuntimeException("ERROR: Transaction " + i + " differs in the batch");
+        }
+        for (int i = 0; i < ACCOUNTS; i++) {
+            if (accounts[i].getBalanceMicros() != expectedBalances[i])
+                throw new RuntimeException("ERROR: Account " + i + " differs in the batch");
+        }
+        if (sequential.totalTransfers() != batch.totalTransfers() || sequential.totalProvision() != batch.totalProvision())
+            throw new RuntimeException("ERROR: Totals differ in the batch");
+
+        System.out.printf("%-22s %,14.0f transactions/s%n", "linear scan lookup", scanRate);
+        System.out.printf("%-22s %,14.0f transactions/s%n", "makeTransaction", sequentialRate);
+        System.out.printf("%-22s %,14.0f transactions/s   same results as sequential%n", "makeTransactions", batchRate);
+    }
+}
+
 public class BankTester {
 
     public static void main(String[] args) {
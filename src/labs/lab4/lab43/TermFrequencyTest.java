@@ -1,46 +1,370 @@
 package labs.lab4.lab43;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.*;
 
 
+/**
+ * Open-addressing map from terms to counts. Terms are looked up straight from a char buffer,
+ * so counting a term that is already in the map allocates nothing.
+ */
+class TermCounts {
+    private String[] keys;
+    private int[] hashes;
+    private int[] counts;
+    private int size = 0;
+
+    TermCounts(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        counts = new int[capacity];
+    }
+
+    // same as String.hashCode, so a term hashes the same from a buffer and as a key
+    static int hash(char[] chars, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) hash = 31 * hash + chars[i];
+        return hash;
+    }
+
+    // similar terms have nearby String hashes, which would pile up in one run of slots
+    private int home(int hash) {
+        return (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(keys.length));
+    }
+
+    private static boolean matches(String key, char[] chars, int from, int to) {
+        if (key.length() != to - from) return false;
+        for (int i = from; i < to; i++) {
+            if (key.charAt(i - from) != chars[i]) return false;
+        }
+        return true;
+    }
+
+    private int slot(char[] chars, int from, int to, int hash) {
+        int mask = keys.length - 1;
+        int slot = home(hash);
+        while (keys[slot] != null && !(hashes[slot] == hash && matches(keys[slot], chars, from, to))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    int get(char[] chars, int from, int to, int hash) {
+        return counts[slot(chars, from, to, hash)];
+    }
+
+    void add(char[] chars, int from, int to, int hash, int count) {
+        int slot = slot(chars, from, to, hash);
+        if (keys[slot] != null) {
+            counts[slot] += count;
+            return;
+        }
+        keys[slot] = new String(chars, from, to - from);
+        hashes[slot] = hash;
+        counts[slot] = count;
+        if (++size * 2 > keys.length) grow();
+    }
+
+    void add(String term, int count) {
+        int hash = term.hashCode();
+        int mask = keys.length - 1;
+        int slot = home(hash);
+        while (keys[slot] != null && !(hashes[slot] == hash && keys[slot].equals(term))) {
+            slot = (slot + 1) & mask;
+        }
+        if (keys[slot] != null) {
+            counts[slot] += count;
+            return;
+        }
+        keys[slot] = term;
+        hashes[slot] = hash;
+        counts[slot] = count;
+        if (++size * 2 > keys.length) grow();
+    }
+
+    void addAll(TermCounts other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != null) add(other.keys[i], other.counts[i]);
+        }
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldHashes = hashes;
+        int[] oldCounts = counts;
+        keys = new String[oldKeys.length * 2];
+        hashes = new int[keys.length];
+        counts = new int[keys.length];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == null) continue;
+            int slot = home(oldHashes[i]);
+            while (keys[slot] != null) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            hashes[slot] = oldHashes[i];
+            counts[slot] = oldCounts[i];
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int total() {
+        int total = 0;
+        for (int count : counts) total += count;
+        return total;
+    }
+
+    /**
+     * The k terms with the highest counts, ties in alphabetical order.
+     */
+    List<String> mostOften(int k) {
+        // worst of the best k at the head
+        Comparator<Integer> worstFirst = Comparator.<Integer>comparingInt(slot -> counts[slot])
+                .thenComparing(slot -> keys[slot], Comparator.reverseOrder());
+        PriorityQueue<Integer> best = new PriorityQueue<>(Math.max(1, k), worstFirst);
+        for (int slot = 0; slot < keys.length && k > 0; slot++) {
+            if (keys[slot] == null) continue;
+            if (best.size() < k) {
+                best.add(slot);
+            } else if (worstFirst.compare(slot, best.peek()) > 0) {
+                best.poll();
+                best.add(slot);
+            }
+        }
+        List<String> result = new ArrayList<>(best.size());
+        while (!best.isEmpty()) result.add(keys[best.poll()]);
+        Collections.reverse(result);
+        return result;
+    }
+}
+
+/**
+ * Counts the terms of one chunk of text into a TermCounts of its own. A term is a run of
+ * characters up to whitespace, lowercased, without dots and commas and trimmed, as the
+ * old line-by-line regexes had it.
+ * <p>
+ * Terms are lowercased from a table built with the locale-independent
+ * {@link Character#toLowerCase(char)}. The default locales whose lowercasing differs from it
+ * (Turkish, Azerbaijani, Lithuanian) send every term through {@link String#toLowerCase()} instead.
+ */
+class TermCounter {
+    private static final byte TERM = 0;
+    private static final byte SEPARATOR = 1;
+    private static final byte DROPPED = 2;
+    // dotted capital I, capital sigma and surrogates lowercase differently in a string
+    private static final byte SPECIAL = 3;
+    private static final byte[] KIND = new byte[Character.MAX_VALUE + 1];
+    private static final char[] LOWER = new char[Character.MAX_VALUE + 1];
+
+    static {
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            LOWER[c] = Character.toLowerCase((char) c);
+            if (Character.isSurrogate((char) c)) KIND[c] = SPECIAL;
+        }
+        for (char c : " \t\n\u000B\f\r".toCharArray()) KIND[c] = SEPARATOR;
+        KIND['.'] = DROPPED;
+        KIND[','] = DROPPED;
+        KIND['İ'] = SPECIAL;
+        KIND['Σ'] = SPECIAL;
+    }
+
+    private static final Set<String> LOCALES_WITH_OWN_LOWERCASE = Set.of("tr", "az", "lt");
+
+    private final TermCounts stopWords;
+    private final boolean lowercaseByLocale;
+    final TermCounts counts = new TermCounts(1 << 12);
+    private char[] term = new char[64];
+
+    TermCounter(TermCounts stopWords) {
+        this.stopWords = stopWords;
+        this.lowercaseByLocale = LOCALES_WITH_OWN_LOWERCASE.contains(Locale.getDefault().getLanguage());
+    }
+
+    // the characters \s matches
+    static boolean isWhitespace(char c) {
+        return KIND[c] == SEPARATOR;
+    }
+
+    void count(char[] chars, int length) {
+        int start = 0;
+        int termLength = 0;
+        boolean special = lowercaseByLocale;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            byte kind = KIND[c];
+            if (kind == TERM) {
+                if (termLength == term.length) term = Arrays.copyOf(term, termLength * 2);
+                term[termLength++] = LOWER[c];
+            } else if (kind == SEPARATOR) {
+                if (special) {
+                    lowercaseAsString(chars, start, i);
+                } else if (termLength > 0) {
+                    add(term, termLength);
+                }
+                start = i + 1;
+                termLength = 0;
+                special = lowercaseByLocale;
+            } else if (kind == SPECIAL) {
+                special = true;
+            }
+        }
+        if (special) {
+            lowercaseAsString(chars, start, length);
+        } else if (termLength > 0) {
+            add(term, termLength);
+        }
+    }
+
+    private void lowercaseAsString(char[] chars, int from, int to) {
+        String lowercase = new String(chars, from, to - from).toLowerCase();
+        int termLength = 0;
+        for (int i = 0; i < lowercase.length(); i++) {
+            char c = lowercase.charAt(i);
+            if (c == '.' || c == ',') continue;
+            if (termLength == term.length) term = Arrays.copyOf(term, termLength * 2);
+            term[termLength++] = c;
+        }
+        add(term, termLength);
+    }
+
+    private void add(char[] chars, int length) {
+        int from = 0;
+        int to = length;
+        while (from < to && chars[from] <= ' ') from++;
+        while (to > from && chars[to - 1] <= ' ') to--;
+        if (from == to) return;
+        int hash = TermCounts.hash(chars, from, to);
+        if (stopWords.get(chars, from, to, hash) > 0) return;
+        counts.add(chars, from, to, hash, 1);
+    }
+}
+
 class TermFrequency {
+    private static final int CHUNK = 1 << 20;
 
-    private final Map<String, Integer> frequencies = new HashMap<>();
+    private final TermCounts frequencies;
 
+    /**
+     * Reads the input in chunks cut at whitespace. The chunks are counted on all processors,
+     * every thread into a map of its own, and the maps are merged at the end.
+     */
     public TermFrequency(InputStream inputStream, String[] stopWords) throws IOException {
-        Set<String> stopSet = new HashSet<>(Arrays.asList(stopWords));
-        BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
+        TermCounts stopSet = new TermCounts(stopWords.length);
+        for (String stopWord : stopWords) stopSet.add(stopWord, 1);
+        Reader reader = new InputStreamReader(inputStream);
 
-        while (true) {
-            String line = br.readLine();
-            if (line == null) break;
-            if (line.isEmpty()) continue;
+        int threads = Runtime.getRuntime().availableProcessors();
+        BlockingQueue<char[]> free = new ArrayBlockingQueue<>(threads * 2);
+        BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(threads * 2);
+        List<Callable<TermCounts>> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            workers.add(() -> {
+                TermCounter counter = new TermCounter(stopSet);
+                for (Chunk chunk; (chunk = full.take()) != Chunk.END; ) {
+                    counter.count(chunk.chars, chunk.length);
+                    free.put(chunk.chars);
+                }
+                return counter.counts;
+            });
+        }
 
-            line = line.toLowerCase()
-                    .replaceAll("\\.", "")
-                    .replaceAll(",", "")
-                    .trim();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<TermCounts>> results = new ArrayList<>();
+            for (Callable<TermCounts> worker : workers) results.add(executor.submit(worker));
+            try {
+                readChunks(reader, new Buffers(free, threads * 2), full);
+            } finally {
+                for (int t = 0; t < threads; t++) full.put(Chunk.END);
+            }
+            frequencies = results.get(0).get();
+            for (int t = 1; t < threads; t++) frequencies.addAll(results.get(t).get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-            String[] words = line.split("\\s++");
-            for (String word : words) {
-                word = word.toLowerCase().trim();
+    private static class Chunk {
+        static final Chunk END = new Chunk(null, 0);
 
-                if (word.isEmpty() || stopSet.contains(word)) continue;
+        final char[] chars;
+        final int length;
+
+        Chunk(char[] chars, int length) {
+            this.chars = chars;
+            this.length = length;
+        }
+    }
 
-                frequencies.put(word, frequencies.getOrDefault(word, 0) + 1);
+    // chunks are allocated as needed, up to a fixed number, and then reused
+    private static class Buffers {
+        private final BlockingQueue<char[]> free;
+        private int left;
+
+        Buffers(BlockingQueue<char[]> free, int limit) {
+            this.free = free;
+            this.left = limit;
+        }
+
+        char[] next() throws InterruptedException {
+            char[] chars = free.poll();
+            if (chars != null) return chars;
+            if (left > 0) {
+                left--;
+                return new char[CHUNK];
             }
+            return free.take();
         }
     }
 
+    private static void readChunks(Reader reader, Buffers buffers, BlockingQueue<Chunk> full)
+            throws IOException, InterruptedException {
+        char[] chars = buffers.next();
+        int length = 0;
+        while (true) {
+            int read = reader.read(chars, length, chars.length - length);
+            if (read < 0) break;
+            length += read;
+            if (length < chars.length) continue;
+
+            int cut = length;
+            while (cut > 0 && !TermCounter.isWhitespace(chars[cut - 1])) cut--;
+            if (cut == 0) {
+                // a single term longer than the chunk
+                chars = Arrays.copyOf(chars, chars.length * 2);
+                continue;
+            }
+            char[] next = buffers.next();
+            if (next.length < length - cut) next = new char[chars.length];
+            System.arraycopy(chars, cut, next, 0, length - cut);
+            full.put(new Chunk(chars, cut));
+            length -= cut;
+            chars = next;
+        }
+        if (length > 0) full.put(new Chunk(chars, length));
+    }
+
     public int countTotal() {
-        return frequencies.values().stream()
-                .mapToInt(Integer::intValue)
-                .sum();
+        return frequencies.total();
     }
 
     public int countDistinct(){
@@ -48,21 +372,133 @@ class TermFrequency {
     }
 
     public List<String> mostOften(int k){
-        List<Entry<String, Integer>> list = new ArrayList<>(frequencies.entrySet());
+        return frequencies.mostOften(k);
+    }
+
+}
+
+class TermFrequencyBenchmark {
+    private static final String[] STOP = {"во", "и", "се", "за", "ќе", "да", "од", "ги", "е", "со", "не", "тоа"};
+    private static final String[] ODD = {"ΟΔΟΣ,Α", "İstanbul", "𝐀bc", "\u0001x", "a.b", "...", ",", "Ǆemal", "ЌЕ", "x y"};
+    private static final String[] SEPARATORS = {" ", " ", " ", " ", "\t", "  ", "\n", "\r\n", "\u000B"};
 
-        list.sort((a, b) -> {
-            int cmp = b.getValue().compareTo(a.getValue());
-            if (cmp != 0) return cmp;
-            return a.getKey().compareTo(b.getKey());
-        });
+    // TermFrequency as it was: lowercase, two regexes and a split per line, boxed counts
+    static class RegexTermFrequency {
+        final Map<String, Integer> frequencies = new HashMap<>();
 
-        List<String> result = new ArrayList<>();
-        for (int i = 0; i < k && i < list.size(); i++) {
-            result.add(list.get(i).getKey());
+        RegexTermFrequency(InputStream inputStream, String[] stopWords) throws IOException {
+            Set<String> stopSet = new HashSet<>(Arrays.asList(stopWords));
+            BufferedReader br = new BufferedReader(new InputStreamReader(inputStream));
+            while (true) {
+                String line = br.readLine();
+                if (line == null) break;
+                if (line.isEmpty()) continue;
+                line = line.toLowerCase().replaceAll("\\.", "").replaceAll(",", "").trim();
+                for (String word : line.split("\\s++")) {
+                    word = word.toLowerCase().trim();
+                    if (word.isEmpty() || stopSet.contains(word)) continue;
+                    frequencies.put(word, frequencies.getOrDefault(word, 0) + 1);
+                }
+            }
+        }
+
+        int countTotal() {
+            return frequencies.values().stream().mapToInt(Integer::intValue).sum();
+        }
+
+        List<String> mostOften(int k) {
+            List<Map.Entry<String, Integer>> list = new ArrayList<>(frequencies.entrySet());
+            list.sort((a, b) -> {
+                int cmp = b.getValue().compareTo(a.getValue());
+                return cmp != 0 ? cmp : a.getKey().compareTo(b.getKey());
+            });
+            List<String> result = new ArrayList<>();
+            for (int i = 0; i < k && i < list.size(); i++) result.add(list.get(i).getKey());
+            return result;
+        }
+    }
+
+    static String word(Random random) {
+        if (random.nextInt(50) == 0) return ODD[random.nextInt(ODD.length)];
+        if (random.nextInt(5) == 0) return STOP[random.nextInt(STOP.length)];
+        // a few very common words and a long tail of rare ones
+        int rank = random.nextInt(3) == 0 ? random.nextInt(2_000_000) : (int) Math.min(1_000_000, 1 / Math.max(1e-6, random.nextDouble()));
+        StringBuilder word = new StringBuilder(random.nextInt(8) == 0 ? "Збор" : "збор");
+        for (int n = rank; n > 0; n /= 30) word.append((char) ('а' + n % 30));
+        if (random.nextInt(10) == 0) word.append(random.nextBoolean() ? '.' : ',');
+        return word.toString();
+    }
+
+    static void writeFile(Path file, long megabytes, Random random) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 20)) {
+            StringBuilder block = new StringBuilder();
+            for (long written = 0; written < megabytes << 20; ) {
+                block.setLength(0);
+                for (int i = 0; i < 10_000; i++) block.append(word(random)).append(SEPARATORS[random.nextInt(SEPARATORS.length)]);
+                byte[] bytes = block.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(bytes);
+                written += bytes.length;
+            }
+        }
+    }
+
+    // lowercasing follows the default locale, as toLowerCase did
+    static void checkLocales() throws IOException {
+        byte[] text = "TITLE Title title IT it İZMİR izmir ıI Įlinoįs JÌ".getBytes(StandardCharsets.UTF_8);
+        Locale saved = Locale.getDefault();
+        try {
+            for (String language : new String[]{"en", "tr", "az", "lt"}) {
+                Locale.setDefault(Locale.forLanguageTag(language));
+                RegexTermFrequency old = new RegexTermFrequency(new ByteArrayInputStream(text), STOP);
+                TermFrequency tf = new TermFrequency(new ByteArrayInputStream(text), STOP);
+                if (old.frequencies.size() != tf.countDistinct() || !old.mostOften(20).equals(tf.mostOften(20)))
+                    throw new RuntimeException("ERROR: Terms differ from the regex version in locale " + language);
+            }
+        } finally {
+            Locale.setDefault(saved);
         }
-        return result;
     }
 
+    public static void main(String[] args) throws IOException {
+        checkLocales();
+        long megabytes = args.length > 0 ? Long.parseLong(args[0]) : 256;
+        Path file = Files.createTempFile("term-frequency", ".txt");
+        try {
+            writeFile(file, megabytes, new Random(42));
+
+            long start = System.nanoTime();
+            RegexTermFrequency old;
+            try (InputStream in = Files.newInputStream(file)) {
+                old = new RegexTermFrequency(in, STOP);
+            }
+            double oldSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            TermFrequency tf;
+            try (InputStream in = Files.newInputStream(file)) {
+                tf = new TermFrequency(in, STOP);
+            }
+            double newSeconds = (System.nanoTime() - start) / 1e9;
+
+            if (old.countTotal() != tf.countTotal() || old.frequencies.size() != tf.countDistinct()
+                    || !old.mostOften(100).equals(tf.mostOften(100)))
+                throw new RuntimeException("ERROR: Counts differ from the regex version");
+
+            start = System.nanoTime();
+            for (int i = 0; i < 10; i++) old.mostOften(10);
+            double oldTopMillis = (System.nanoTime() - start) / 1e6 / 10;
+            start = System.nanoTime();
+            for (int i = 0; i < 10; i++) tf.mostOften(10);
+            double newTopMillis = (System.nanoTime() - start) / 1e6 / 10;
+
+            double size = Files.size(file) / (double) (1 << 20);
+            System.out.printf("%,.0f MB, %,d terms, %,d distinct, same counts and top 100%n", size, tf.countTotal(), tf.countDistinct());
+            System.out.printf("%-8s count %,8.1f MB/s   mostOften(10) %,8.2f ms%n", "regex", size / oldSeconds, oldTopMillis);
+            System.out.printf("%-8s count %,8.1f MB/s   mostOften(10) %,8.2f ms%n", "scan", size / newSeconds, newTopMillis);
+        } finally {
+            Files.delete(file);
+        }
+    }
 }
 
 public class TermFrequencyTest {
@@ -0,0 +1,83 @@
+package labs.lab7.concert_ticket_system;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class FlashSaleBenchmark {
+    private static final int TICKETS = 100_000;
+    private static final int SECTIONS = 16;
+    private static final int ATTEMPTS = 1_000_000;
+    private static final long HOLD_MILLIS = 50;
+
+    static class Outcome {
+        long bought, reserved, confirmed;
+    }
+
+    // a third of the buyers go through reserve/confirm, and every fourth of those walks away
+    static void run(int threads) throws InterruptedException, ExecutionException {
+        int[] sections = new int[SECTIONS];
+        Arrays.fill(sections, TICKETS / SECTIONS);
+        TicketSystem.TicketInventory inventory = new TicketSystem.TicketInventory(sections, 10, 256, System::currentTimeMillis);
+
+        ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor();
+        expirer.scheduleAtFixedRate(inventory::expireHolds, 10, 10, TimeUnit.MILLISECONDS);
+
+        List<Callable<Outcome>> tasks = new ArrayList<>();
+        int perThread = ATTEMPTS / threads;
+        for (int t = 0; t < threads; t++) {
+            tasks.add(() -> {
+                Outcome outcome = new Outcome();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < perThread; i++) {
+                    if (random.nextInt(3) > 0) {
+                        if (inventory.buy()) outcome.bought++;
+                    } else {
+                        TicketSystem.Reservation reservation = inventory.reserve(HOLD_MILLIS);
+                        if (reservation == null) continue;
+                        outcome.reserved++;
+                        if (random.nextInt(4) > 0 && inventory.confirm(reservation)) outcome.confirmed++;
+                    }
+                }
+                return outcome;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long bought = 0, confirmed = 0;
+        try {
+            for (Future<Outcome> f : executor.invokeAll(tasks)) {
+                bought += f.get().bought;
+                confirmed += f.get().confirmed;
+            }
+        } finally {
+            executor.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // wait for the abandoned holds to run out and come back
+        Thread.sleep(HOLD_MILLIS + 50);
+        expirer.shutdown();
+        expirer.awaitTermination(1, TimeUnit.SECONDS);
+        inventory.expireHolds();
+
+        long sold = inventory.sold();
+        if (sold != bought + confirmed || sold > TICKETS
+                || sold + inventory.available() + inventory.held() != TICKETS || inventory.held() != 0) {
+            throw new RuntimeException(String.format("ERROR: Oversell or lost tickets: sold %d, bought %d, "
+                            + "confirmed %d, available %d, held %d",
+                    sold, bought, confirmed, inventory.available(), inventory.held()));
+        }
+        System.out.printf("%2d threads: %,d attempts in %.1f ms (%,.0f attempts/s), sold %,d, left %,d, oversold 0%n",
+                threads, (long) perThread * threads, elapsed / 1e6, perThread * threads * 1e9 / elapsed,
+                sold, inventory.available());
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads = 1; threads <= 64; threads *= 4) {
+            run(threads);
+        }
+    }
+}
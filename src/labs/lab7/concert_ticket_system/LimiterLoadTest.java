@@ -0,0 +1,89 @@
+package labs.lab7.concert_ticket_system;
+
+import concurrent_stats.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+public class LimiterLoadTest {
+    private static final int CLIENTS = 200;
+    private static final int BACKEND_CAPACITY = 8;
+    private static final long SERVICE_MILLIS = 2;
+    private static final long RUN_MILLIS = 3_000;
+    private static final long ACQUIRE_TIMEOUT_MILLIS = 20;
+
+    // a backend that serves BACKEND_CAPACITY requests at a time and queues the rest
+    static class Backend {
+        private final Semaphore workers = new Semaphore(BACKEND_CAPACITY, true);
+
+        void call() throws InterruptedException {
+            workers.acquire();
+            try {
+                Thread.sleep(SERVICE_MILLIS);
+            } finally {
+                workers.release();
+            }
+        }
+    }
+
+    // every client sends its next request as soon as the previous one finished
+    static void run(String name, Supplier<TicketSystem.AdaptiveLimiter> factory)
+            throws InterruptedException, ExecutionException {
+        TicketSystem.AdaptiveLimiter limiter = factory.get();
+        Backend backend = new Backend();
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder served = new LongAdder();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RUN_MILLIS);
+
+        List<Callable<Void>> clients = new ArrayList<>();
+        for (int c = 0; c < CLIENTS; c++) {
+            clients.add(() -> {
+                while (System.nanoTime() < deadline) {
+                    long requested = System.nanoTime();
+                    if (!limiter.acquire(ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        // a rejected client backs off instead of retrying straight away
+                        Thread.sleep(SERVICE_MILLIS);
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        backend.call();
+                    } finally {
+                        limiter.release(start);
+                    }
+                    latency.record(System.nanoTime() - requested);
+                    served.increment();
+                }
+                return null;
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            for (Future<Void> f : executor.invokeAll(clients)) f.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        if (limiter.getInFlight() != 0 || limiter.getQueued() != 0) {
+            throw new RuntimeException("ERROR: Limiter did not drain: " + limiter.getInFlight() + " in flight, "
+                    + limiter.getQueued() + " queued");
+        }
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf("%-10s %,10.0f req/s   p50 %,7.2f ms   p99 %,8.2f ms   rejected %,8d   final limit %5d%n",
+                name, served.sum() * 1000.0 / RUN_MILLIS, snapshot.quantile(0.5) / 1e6,
+                snapshot.quantile(0.99) / 1e6, limiter.getRejected(), limiter.getLimit());
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf("%d clients against a backend serving %d requests at a time in %d ms each%n",
+                CLIENTS, BACKEND_CAPACITY, SERVICE_MILLIS);
+        // a limit that never moves, at or above the client count, admits everyone
+        run("unlimited", () -> new TicketSystem.AdaptiveLimiter(CLIENTS, CLIENTS, CLIENTS, 0));
+        run("fixed 10", () -> new TicketSystem.AdaptiveLimiter(10, 10, 10, CLIENTS));
+        run("adaptive", () -> new TicketSystem.AdaptiveLimiter(10, 1, 100, 50));
+    }
+}
@@ -1,30 +1,381 @@
 package labs.lab7.concert_ticket_system;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
 
 public class TicketSystem {
 
     public static class TicketAccount {
-        private int ticketsAvailable = 100;
+        private final TicketInventory inventory;
+
+        public TicketAccount() {
+            this(100);
+        }
+
+        public TicketAccount(int tickets) {
+            this.inventory = new TicketInventory(new int[]{tickets});
+        }
+
+        // fails only when the tickets are gone, never because other buyers are busy
+        public boolean buyTicket() {
+            return inventory.buy();
+        }
+    }
+
+    /**
+     * Ticket counts per section, decremented with CAS so buyers never wait on a lock.
+     * <p>
+     * Tickets can also be held for a while: {@link #reserve} takes a ticket out of the
+     * section right away, {@link #confirm} turns the hold into a sale, and a hold that is
+     * neither confirmed nor cancelled in time is put back by a timing wheel.
+     * Every ticket is always in exactly one place (available, held or sold), so a sale
+     * can never exceed the tickets that were put up.
+     */
+    public static class TicketInventory {
+        private final AtomicIntegerArray available;
+        private final int total;
+        private final LongAdder sold = new LongAdder();
+        private final AtomicLong reservationIds = new AtomicLong();
+        private final ConcurrentHashMap<Long, Reservation> holds = new ConcurrentHashMap<>();
+        private final TimingWheel wheel;
+        private final LongSupplier clock;
+
+        public TicketInventory(int[] sections) {
+            this(sections, 100, 512, System::currentTimeMillis);
+        }
+
+        public TicketInventory(int[] sections, long tickMillis, int wheelSize, LongSupplier clockMillis) {
+            this.available = new AtomicIntegerArray(sections);
+            this.total = Arrays.stream(sections).sum();
+            this.clock = clockMillis;
+            this.wheel = new TimingWheel(tickMillis, wheelSize, clockMillis.getAsLong());
+        }
+
+        public int sections() {
+            return available.length();
+        }
+
+        public boolean buy(int section) {
+            if (!take(section)) return false;
+            sold.increment();
+            return true;
+        }
+
+        /**
+         * Buys from any section, starting at one picked by the calling thread so buyers spread out.
+         */
+        public boolean buy() {
+            int start = start();
+            for (int i = 0; i < available.length(); i++) {
+                if (buy((start + i) % available.length())) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Holds a ticket of the section for {@code holdMillis}; null when the section is sold out.
+         */
+        public Reservation reserve(int section, long holdMillis) {
+            if (!take(section)) return null;
+            Reservation reservation = new Reservation(reservationIds.incrementAndGet(), section,
+                    clock.getAsLong() + holdMillis);
+            holds.put(reservation.id, reservation);
+            wheel.schedule(reservation);
+            return reservation;
+        }
+
+        public Reservation reserve(long holdMillis) {
+            int start = start();
+            for (int i = 0; i < available.length(); i++) {
+                Reservation reservation = reserve((start + i) % available.length(), holdMillis);
+                if (reservation != null) return reservation;
+            }
+            return null;
+        }
+
+        /**
+         * Turns the hold into a sale; false if it already expired or was cancelled.
+         */
+        public boolean confirm(Reservation reservation) {
+            if (!holds.remove(reservation.id, reservation)) return false;
+            sold.increment();
+            return true;
+        }
+
+        public boolean cancel(Reservation reservation) {
+            if (!holds.remove(reservation.id, reservation)) return false;
+            available.incrementAndGet(reservation.section);
+            return true;
+        }
+
+        /**
+         * Releases every hold that expired up to now; call it periodically, e.g. every tick.
+         */
+        public int expireHolds() {
+            int[] released = {0};
+            wheel.advance(clock.getAsLong(), reservation -> {
+                if (cancel(reservation)) released[0]++;
+            });
+            return released[0];
+        }
+
+        public int available() {
+            int sum = 0;
+            for (int i = 0; i < available.length(); i++) sum += available.get(i);
+            return sum;
+        }
+
+        public int held() {
+            return holds.size();
+        }
+
+        public long sold() {
+            return sold.sum();
+        }
+
+        public int total() {
+            return total;
+        }
+
+        private boolean take(int section) {
+            while (true) {
+                int current = available.get(section);
+                if (current == 0) return false;
+                if (available.compareAndSet(section, current, current - 1)) return true;
+            }
+        }
+
+        private int start() {
+            return (int) (Thread.currentThread().threadId() % available.length());
+        }
+    }
+
+    public static class Reservation {
+        public final long id;
+        public final int section;
+        public final long expiresAt;
+
+        Reservation(long id, int section, long expiresAt) {
+            this.id = id;
+            this.section = section;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Hashed timing wheel: holds are put in the bucket of the tick they expire in, so expiring
+     * only looks at the buckets of the ticks that passed instead of at every open hold.
+     * Holds further out than one turn of the wheel stay in their bucket until their turn comes.
+     * Scheduling shares a read lock, so holds are put in concurrently, while advancing takes
+     * the write lock: a hold can then never land in a bucket that was just checked.
+     */
+    static class TimingWheel {
+        private final long tickMillis;
+        private final Queue<Reservation>[] buckets;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private long currentTick;
+
+        @SuppressWarnings("unchecked")
+        TimingWheel(long tickMillis, int size, long startMillis) {
+            this.tickMillis = tickMillis;
+            this.buckets = (Queue<Reservation>[]) new Queue<?>[size];
+            for (int i = 0; i < size; i++) {
+                buckets[i] = new ConcurrentLinkedQueue<>();
+            }
+            this.currentTick = startMillis / tickMillis;
+        }
+
+        void schedule(Reservation reservation) {
+            lock.readLock().lock();
+            try {
+                // a hold that is already due goes in the next bucket to be checked
+                long tick = Math.max(reservation.expiresAt / tickMillis, currentTick);
+                buckets[(int) (tick % buckets.length)].offer(reservation);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void advance(long nowMillis, Consumer<Reservation> onExpired) {
+            lock.writeLock().lock();
+            try {
+                long nowTick = nowMillis / tickMillis;
+                long last = Math.min(nowTick, currentTick + buckets.length - 1);
+                for (long tick = currentTick; tick <= last; tick++) {
+                    Queue<Reservation> bucket = buckets[(int) (tick % buckets.length)];
+                    List<Reservation> notYet = new ArrayList<>();
+                    Reservation reservation;
+                    while ((reservation = bucket.poll()) != null) {
+                        if (reservation.expiresAt <= nowMillis) onExpired.accept(reservation);
+                        else notYet.add(reservation);
+                    }
+                    bucket.addAll(notYet);
+                }
+                currentTick = nowTick;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Admission control whose concurrency limit follows the observed latency (AIMD).
+     * <p>
+     * The lowest recent latency is taken as the latency of an unloaded backend. While requests
+     * complete within {@code tolerance} times that, the limit grows by about one per limit's worth
+     * of completions; a slower request cuts it by {@code backoff}, at most once per limit's worth
+     * of completions so a single burst does not collapse it. Requests over the limit wait in a
+     * bounded queue and are rejected when it is full or their timeout passes.
+     */
+    public static class AdaptiveLimiter {
+        private static final int MIN_LATENCY_WINDOW = 1000;
+
+        private final int minLimit;
+        private final int maxLimit;
+        private final int maxQueued;
+        private final double tolerance;
+        private final double backoff;
+
         private final ReentrantLock lock = new ReentrantLock();
+        private final Condition slotFreed = lock.newCondition();
+        private double limit;
+        private int inFlight;
+        private int queued;
+        private long rejected;
+        private long minLatency = Long.MAX_VALUE;
+        private long windowMinLatency = Long.MAX_VALUE;
+        private int windowSamples;
+        private int sinceDecrease;
+
+        public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueued) {
+            this(initialLimit, minLimit, maxLimit, maxQueued, 2.0, 0.9);
+        }
+
+        public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueued,
+                               double tolerance, double backoff) {
+            this.limit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.maxQueued = maxQueued;
+            this.tolerance = tolerance;
+            this.backoff = backoff;
+        }
 
-        public boolean buyTicket() throws InterruptedException {
-            // TODO: Use the lock here to safely decrease ticketsAvailable
-            // 1. Lock 2. Check if > 0 3. Decrease 4. Unlock in 'finally'
-            if (lock.tryLock(100, TimeUnit.MILLISECONDS)) {
+        /**
+         * Waits up to the timeout for a slot; false if the request was rejected.
+         * A caller that got a slot must call {@link #release} with its start time.
+         */
+        public boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+            long remaining = unit.toNanos(timeout);
+            lock.lock();
+            try {
+                if (inFlight < (int) limit) {
+                    inFlight++;
+                    return true;
+                }
+                if (queued >= maxQueued) {
+                    rejected++;
+                    return false;
+                }
+                queued++;
                 try {
-                    if (ticketsAvailable > 0) {
-                        ticketsAvailable--;
-                        return true;
+                    while (inFlight >= (int) limit) {
+                        if (remaining <= 0) {
+                            rejected++;
+                            return false;
+                        }
+                        remaining = slotFreed.awaitNanos(remaining);
                     }
+                    inFlight++;
+                    return true;
                 } finally {
-                    lock.unlock();
+                    queued--;
                 }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void release(long startNanos) {
+            long latency = System.nanoTime() - startNanos;
+            lock.lock();
+            try {
+                inFlight--;
+                adjust(latency);
+                slotFreed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void adjust(long latency) {
+            // the unloaded latency moves a tenth of the way towards each window's minimum, so it can
+            // follow a backend that got slower without being dragged up by the queueing it causes
+            windowMinLatency = Math.min(windowMinLatency, latency);
+            minLatency = Math.min(minLatency, latency);
+            if (++windowSamples == MIN_LATENCY_WINDOW) {
+                minLatency += (windowMinLatency - minLatency) / 10;
+                windowMinLatency = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+
+            sinceDecrease++;
+            if (latency > minLatency * tolerance) {
+                if (sinceDecrease >= limit) {
+                    limit = Math.max(minLimit, limit * backoff);
+                    sinceDecrease = 0;
+                }
+            } else {
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+
+        public int getLimit() {
+            lock.lock();
+            try {
+                return (int) limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int getInFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int getQueued() {
+            lock.lock();
+            try {
+                return queued;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long getRejected() {
+            lock.lock();
+            try {
+                return rejected;
+            } finally {
+                lock.unlock();
             }
-            return false;
         }
     }
 
@@ -41,23 +392,23 @@ public class TicketSystem {
     public static void main(String[] args) throws Exception {
         TicketAccount account = new TicketAccount();
         ExecutorService executor = Executors.newFixedThreadPool(20);
-        Semaphore serverCapacity = new Semaphore(10); // Limit to 10
+        AdaptiveLimiter serverCapacity = new AdaptiveLimiter(10, 1, 100, 50); // Starts at 10, adapts to latency
 
         List<Callable<PurchaseResult>> tasks = new ArrayList<>();
 
         for (int i = 1; i <= 200; i++) {
             int id = i;
             tasks.add(() -> {
-                // TODO: 1. Use semaphore.acquire()
-                serverCapacity.acquire();
-                // TODO: 2. Try to buy ticket
+                if (!serverCapacity.acquire(100, TimeUnit.MILLISECONDS)) {
+                    return new PurchaseResult(id, false);
+                }
+                long start = System.nanoTime();
                 try {
                     boolean success = account.buyTicket();
                     return new PurchaseResult(id, success);
                 } finally {
-                    serverCapacity.release();
+                    serverCapacity.release(start);
                 }
-                // TODO: 3. Use semaphore.release() in 'finally'
             });
         }
 
@@ -1,17 +1,186 @@
 package labs.lab7.lab71;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.*;
 
+/**
+ * Counts of a contiguous piece of text, plus what is needed to merge it with the piece after it:
+ * a word cut in two by the boundary is counted once.
+ * <p>
+ * A word is a maximal run of non-whitespace, whitespace being the same as regex {@code \s}.
+ * {@link #lines()} and {@link #splitWords()} turn the counts into what {@code text.split("\n").length}
+ * and {@code text.split("\\s++").length} give for the whole text.
+ */
+final class TextStats {
+    static final TextStats EMPTY = new TextStats(0, 0, 0, 0, false, false, 0);
+
+    final long length;
+    final long newlines;
+    final long words;
+    final long chars;
+    final boolean startsInWord;
+    final boolean endsInWord;
+    final long trailingNewlines;
+
+    TextStats(long length, long newlines, long words, long chars,
+              boolean startsInWord, boolean endsInWord, long trailingNewlines) {
+        this.length = length;
+        this.newlines = newlines;
+        this.words = words;
+        this.chars = chars;
+        this.startsInWord = startsInWord;
+        this.endsInWord = endsInWord;
+        this.trailingNewlines = trailingNewlines;
+    }
+
+    static boolean isWhitespace(int c) {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    static TextStats scan(String text, int from, int to) {
+        if (from == to) return EMPTY;
+        long newlines = 0;
+        long words = 0;
+        long trailingNewlines = 0;
+        boolean inWord = false;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            boolean word = !isWhitespace(c);
+            if (c == '\n') {
+                newlines++;
+                trailingNewlines++;
+            } else {
+                trailingNewlines = 0;
+            }
+            if (word && !inWord) words++;
+            inWord = word;
+        }
+        return new TextStats(to - from, newlines, words, to - from,
+                !isWhitespace(text.charAt(from)), inWord, trailingNewlines);
+    }
+
+    /**
+     * Scans UTF-8 bytes. Whitespace is ASCII, which never occurs inside a multi-byte sequence,
+     * and chars are counted as UTF-16 units so a file gives the same counts as its String.
+     */
+    static TextStats scan(ByteBuffer buffer, int from, int to) {
+        if (from == to) return EMPTY;
+        long newlines = 0;
+        long words = 0;
+        long chars = 0;
+        long trailingNewlines = 0;
+        boolean inWord = false;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            boolean word = !isWhitespace(b);
+            if (b == '\n') {
+                newlines++;
+                trailingNewlines++;
+            } else {
+                trailingNewlines = 0;
+            }
+            if (word && !inWord) words++;
+            inWord = word;
+            // every byte but a continuation byte starts a char, and 4-byte sequences are surrogate pairs
+            if ((b & 0xC0) != 0x80) chars++;
+            if ((b & 0xF8) == 0xF0) chars++;
+        }
+        return new TextStats(to - from, newlines, words, chars,
+                !isWhitespace(buffer.get(from)), inWord, trailingNewlines);
+    }
+
+    TextStats merge(TextStats next) {
+        if (length == 0) return next;
+        if (next.length == 0) return this;
+        long joinedWords = endsInWord && next.startsInWord ? 1 : 0;
+        long trailing = next.trailingNewlines == next.length ? trailingNewlines + next.length : next.trailingNewlines;
+        return new TextStats(length + next.length, newlines + next.newlines, words + next.words - joinedWords,
+                chars + next.chars, startsInWord, next.endsInWord, trailing);
+    }
+
+    // split drops trailing empty strings, and a text without a separator is one string, even when empty
+    long lines() {
+        if (length == 0) return 1;
+        if (trailingNewlines == length) return 0;
+        return newlines - trailingNewlines + 1;
+    }
+
+    // leading whitespace also gives split an empty first string
+    long splitWords() {
+        if (length == 0) return 1;
+        if (words == 0) return 0;
+        return words + (startsInWord ? 0 : 1);
+    }
+}
+
+class StringCountTask extends RecursiveTask<TextStats> {
+    private final String text;
+    private final int from;
+    private final int to;
+    private final int threshold;
+
+    StringCountTask(String text, int from, int to, int threshold) {
+        this.text = text;
+        this.from = from;
+        this.to = to;
+        this.threshold = threshold;
+    }
+
+    @Override
+    protected TextStats compute() {
+        if (to - from <= threshold) return TextStats.scan(text, from, to);
+        int mid = (from + to) >>> 1;
+        StringCountTask left = new StringCountTask(text, from, mid, threshold);
+        left.fork();
+        TextStats right = new StringCountTask(text, mid, to, threshold).compute();
+        return left.join().merge(right);
+    }
+}
+
+class BufferCountTask extends RecursiveTask<TextStats> {
+    private final ByteBuffer buffer;
+    private final int from;
+    private final int to;
+    private final int threshold;
+
+    BufferCountTask(ByteBuffer buffer, int from, int to, int threshold) {
+        this.buffer = buffer;
+        this.from = from;
+        this.to = to;
+        this.threshold = threshold;
+    }
+
+    @Override
+    protected TextStats compute() {
+        if (to - from <= threshold) return TextStats.scan(buffer, from, to);
+        int mid = (from + to) >>> 1;
+        BufferCountTask left = new BufferCountTask(buffer, from, mid, threshold);
+        left.fork();
+        TextStats right = new BufferCountTask(buffer, mid, to, threshold).compute();
+        return left.join().merge(right);
+    }
+}
+
 public class TextCounter {
+    // texts shorter than this are not worth splitting
+    static final int PARALLEL_THRESHOLD = 1 << 20;
+    private static final int MIN_CHUNK = 1 << 16;
+    // a mapped buffer is indexed by int, so larger files are mapped in regions
+    private static final long MAP_REGION = 1L << 30;
 
     // Result holder
     public static class Counter {
         public final int textId;
-        public final int lines;
-        public final int words;
-        public final int chars;
+        public final long lines;
+        public final long words;
+        public final long chars;
 
-        public Counter(int textId, int lines, int words, int chars) {
+        public Counter(int textId, long lines, long words, long chars) {
             this.textId = textId;
             this.lines = lines;
             this.words = words;
@@ -32,13 +201,51 @@ public class TextCounter {
     }
 
 
+    private static int chunkSize(long length) {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        return (int) Math.max(MIN_CHUNK, Math.min(Integer.MAX_VALUE, length / (parallelism * 4L)));
+    }
+
+    private static Counter toCounter(int textId, TextStats stats) {
+        return new Counter(textId, stats.lines(), stats.splitWords(), stats.chars);
+    }
+
+    public static Counter count(int textId, String text) {
+        return toCounter(textId, TextStats.scan(text, 0, text.length()));
+    }
+
+    /**
+     * Splits the text into chunks counted on the common fork/join pool.
+     */
+    public static Counter countParallel(int textId, String text) {
+        TextStats stats = ForkJoinPool.commonPool()
+                .invoke(new StringCountTask(text, 0, text.length(), chunkSize(text.length())));
+        return toCounter(textId, stats);
+    }
+
+    /**
+     * Counts a UTF-8 file of any size by memory-mapping it, without reading it onto the heap.
+     */
+    public static Counter countFile(int textId, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunk = chunkSize(size);
+            List<ForkJoinTask<TextStats>> regions = new ArrayList<>();
+            for (long position = 0; position < size; position += MAP_REGION) {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_REGION, size - position));
+                regions.add(ForkJoinPool.commonPool().submit(new BufferCountTask(region, 0, region.limit(), chunk)));
+            }
+            TextStats total = TextStats.EMPTY;
+            for (ForkJoinTask<TextStats> region : regions) {
+                total = total.merge(region.join());
+            }
+            return toCounter(textId, total);
+        }
+    }
+
     public static Callable<Counter> getTextCounter(int textId, String text) {
-        return () -> {
-            int lines = text.split("\n").length;
-            int words = text.split("\\s++").length;
-            int chars = text.length();
-            return new Counter(textId, lines, words, chars);
-        };
+        return () -> text.length() < PARALLEL_THRESHOLD ? count(textId, text) : countParallel(textId, text);
     }
 
 
@@ -82,12 +289,11 @@ public class TextCounter {
         for (Future<Counter> future : futures) {
             results.add(future.get());
         }
-        executor.shutdown();
 
         Callable<Counter> aggregationTask = () ->{
-            int totalLines = 0;
-            int totalWords = 0;
-            int totalChars = 0;
+            long totalLines = 0;
+            long totalWords = 0;
+            long totalChars = 0;
             for (Counter result : results) {
                 totalLines += result.lines;
                 totalWords += result.words;
@@ -98,6 +304,7 @@ public class TextCounter {
 
         Future<Counter> totalFuture = executor.submit(aggregationTask);
         Counter totalResult  = totalFuture.get();
+        executor.shutdown();
 
         // Sorting by textId (important concept!)
         results.sort(Comparator.comparingInt(c -> c.textId));
@@ -0,0 +1,113 @@
+package labs.lab7.lab71;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.function.Supplier;
+
+public class TextCounterBenchmark {
+    private static final String[] WORDS = {"the", "concert", "ticket", "ćevapi", "šljiva", "日本語", "😀", "a", "lorem"};
+    private static final int STRING_CHARS = 32 << 20;
+    private static final int REPEATS = 5;
+    // texts where split counts an empty line or word, or none at all
+    private static final String[] EDGE_CASES = {"", " ", "\n", "\n\n", " \n ", "a", " a", "\ta b", "a \n", "a\n\n\n",
+            "\na", "\n\na\n\nb\n\n", "  a  b  ", "\u000Ba\u000B", "\r\n", "a\r\n\r\n", "😀 \n"};
+
+    // words separated by single spaces, tabs or newlines, never starting with whitespace
+    static String randomText(Random random, int chars) {
+        StringBuilder text = new StringBuilder(chars + 16);
+        while (text.length() < chars) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            int separator = random.nextInt(12);
+            text.append(separator == 0 ? '\n' : separator == 1 ? '\t' : ' ');
+        }
+        text.append("end");
+        return text.toString();
+    }
+
+    static TextCounter.Counter splitCount(String text) {
+        return new TextCounter.Counter(0, text.split("\n").length, text.split("\\s++").length, text.length());
+    }
+
+    static void check(String what, TextCounter.Counter expected, TextCounter.Counter actual) {
+        if (expected.lines != actual.lines || expected.words != actual.words || expected.chars != actual.chars) {
+            throw new RuntimeException("ERROR: " + what + " counted " + actual + ", expected " + expected);
+        }
+    }
+
+    // best of REPEATS, in MB/s of the given size
+    static double measure(long bytes, Supplier<TextCounter.Counter> counter) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < REPEATS; i++) {
+            long start = System.nanoTime();
+            counter.get();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return bytes / (best / 1e9) / (1 << 20);
+    }
+
+    static void writeFile(Path file, long megabytes, Random random) throws IOException {
+        byte[] block = randomText(random, 1 << 20).getBytes(StandardCharsets.UTF_8);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 20)) {
+            for (long written = 0; written < megabytes << 20; written += block.length) {
+                out.write(block);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long fileMegabytes = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        Random random = new Random(42);
+
+        String text = randomText(random, STRING_CHARS);
+        long textBytes = 2L * text.length();
+        for (String edge : EDGE_CASES) {
+            check("single pass", splitCount(edge), TextCounter.count(0, edge));
+        }
+        // leading whitespace and trailing blank lines, in a text long enough to be split into chunks
+        String padded = " \n\t" + text + "\n \n\n\n";
+        check("fork/join", splitCount(padded), TextCounter.countParallel(0, padded));
+        String blank = "\n".repeat(STRING_CHARS);
+        check("fork/join", splitCount(blank), TextCounter.countParallel(0, blank));
+
+        TextCounter.Counter expected = splitCount(text);
+        check("single pass", expected, TextCounter.count(0, text));
+        check("fork/join", expected, TextCounter.countParallel(0, text));
+
+        Path small = Files.createTempFile("text-counter", ".txt");
+        try {
+            Files.writeString(small, text);
+            check("mapped file", expected, TextCounter.countFile(0, small));
+            Files.writeString(small, padded);
+            check("mapped file", splitCount(padded), TextCounter.countFile(0, small));
+            Files.writeString(small, "");
+            check("mapped file", splitCount(""), TextCounter.countFile(0, small));
+        } finally {
+            Files.delete(small);
+        }
+
+        System.out.printf("%-12s %,10.0f MB/s%n", "split", measure(textBytes, () -> splitCount(text)));
+        System.out.printf("%-12s %,10.0f MB/s%n", "single pass", measure(textBytes, () -> TextCounter.count(0, text)));
+        System.out.printf("%-12s %,10.0f MB/s%n", "fork/join", measure(textBytes, () -> TextCounter.countParallel(0, text)));
+
+        Path large = Files.createTempFile("text-counter", ".txt");
+        try {
+            writeFile(large, fileMegabytes, random);
+            long size = Files.size(large);
+            double throughput = measure(size, () -> {
+                try {
+                    return TextCounter.countFile(0, large);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            System.out.printf("%-12s %,10.0f MB/s   (%,d MB mapped file)%n", "mapped file", throughput, size >> 20);
+        } finally {
+            Files.delete(large);
+        }
+    }
+}
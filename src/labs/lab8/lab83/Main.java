@@ -1,10 +1,19 @@
 package labs.lab8.lab83;
 
+import concurrent_stats.LatencyHistogram;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 
 enum ActionType {
@@ -88,105 +97,292 @@ class RoomAction {
 }
 
 
-class GameRoom {
-
-    public final String roomId;
-    public final Map<String, Player> players = new ConcurrentHashMap<>();
+/**
+ * What a mailbox does with a new message when its queue is full.
+ */
+enum OverflowPolicy {
+    BLOCK,       // the sender waits for space
+    DROP_OLDEST, // the oldest queued message is discarded
+    REJECT       // the new message is discarded and post returns false
+}
 
-    private final BlockingQueue<PlayerAction> actionQueue =
-            new LinkedBlockingQueue<>();
+/**
+ * Bounded queue of messages for one room, drained by whichever scheduler worker picks it up.
+ * At most one worker drains a mailbox at a time, so messages are handled in FIFO order,
+ * and a mailbox with nothing queued is not known to any worker.
+ * Messages are handed to the handler in batches of up to {@code batchSize}; the list is
+ * reused for the next batch, so the handler must not keep it.
+ */
+class Mailbox<T> implements Runnable {
+    private static class Envelope<T> {
+        final T message;
+        final long postedAt;
+
+        Envelope(T message) {
+            this.message = message;
+            this.postedAt = System.nanoTime();
+        }
+    }
 
-    private final ExecutorService executor =
-            Executors.newSingleThreadExecutor();
+    private final BlockingQueue<Envelope<T>> queue;
+    private final OverflowPolicy policy;
+    private final int batchSize;
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final RoomScheduler scheduler;
+    private final Consumer<List<T>> handler;
+    private final List<Envelope<T>> drained;
+    private final List<T> batch;
+
+    private final LongAdder posted = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    // only the draining worker writes these; percentiles are kept by the scheduler for all rooms
+    private volatile long handled;
+    private volatile long batches;
+    private volatile long waitNanos;
+    private volatile long maxWaitNanos;
+    private volatile long maxBatchNanos;
+
+    Mailbox(RoomScheduler scheduler, int capacity, OverflowPolicy policy, int batchSize, Consumer<List<T>> handler) {
+        this.scheduler = scheduler;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.batchSize = batchSize;
+        this.handler = handler;
+        this.drained = new ArrayList<>(batchSize);
+        this.batch = new ArrayList<>(batchSize);
+    }
 
-    public volatile boolean running = true;
+    /**
+     * Queues the message according to the overflow policy; false if it was rejected.
+     */
+    public boolean post(T message) throws InterruptedException {
+        Envelope<T> envelope = new Envelope<>(message);
+        switch (policy) {
+            case BLOCK:
+                queue.put(envelope);
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(envelope)) {
+                    if (queue.poll() != null) dropped.increment();
+                }
+                break;
+            case REJECT:
+                if (!queue.offer(envelope)) {
+                    rejected.increment();
+                    return false;
+                }
+                break;
+        }
+        posted.increment();
+        trySchedule();
+        return true;
+    }
 
-    public GameRoom(String roomId) {
-        this.roomId = roomId;
-        startProcessor();
+    private void trySchedule() {
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this);
+        }
     }
 
-    // TODO: Implement startProcessor
-    private void startProcessor() {
-        // We use the executor to run a single long-running loop
-        executor.execute(() -> {
-            while (running || !actionQueue.isEmpty()) { // Continue until stopped AND queue is empty
-                try {
-                    // poll with timeout to allow checking the 'running' flag periodically
-                    PlayerAction action = actionQueue.poll(100, TimeUnit.MILLISECONDS);
-                    if (action != null) {
-                        processAction(action);
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
+    @Override
+    public void run() {
+        try {
+            queue.drainTo(drained, batchSize);
+            if (!drained.isEmpty()) {
+                long start = System.nanoTime();
+                long waited = 0, maxWait = maxWaitNanos;
+                for (Envelope<T> envelope : drained) {
+                    long wait = Math.max(0, start - envelope.postedAt);
+                    scheduler.queueLatency().record(wait);
+                    waited += wait;
+                    maxWait = Math.max(maxWait, wait);
+                    batch.add(envelope.message);
                 }
+                handler.accept(batch);
+                long batchNanos = System.nanoTime() - start;
+                scheduler.batchLatency().record(batchNanos);
+
+                handled += batch.size();
+                batches++;
+                waitNanos += waited;
+                maxWaitNanos = maxWait;
+                maxBatchNanos = Math.max(maxBatchNanos, batchNanos);
             }
-        });
+        } finally {
+            drained.clear();
+            batch.clear();
+            scheduled.set(false);
+            // a message may have arrived after the drain, before the flag was cleared.
+            // Rescheduling counts as pending before this run stops counting, so shutdown
+            // never sees zero while a follow-up run is still to be submitted
+            trySchedule();
+            scheduler.finished();
+        }
+    }
+
+    public int depth() {
+        return queue.size();
+    }
+
+    public String metrics() {
+        long handled = this.handled;
+        return String.format("depth=%d posted=%d dropped=%d rejected=%d batches=%d " +
+                        "queue-wait avg=%.2fms max=%.2fms batch max=%.2fms",
+                depth(), posted.sum(), dropped.sum(), rejected.sum(), batches,
+                handled == 0 ? 0.0 : waitNanos / 1e6 / handled, maxWaitNanos / 1e6, maxBatchNanos / 1e6);
+    }
+}
+
+/**
+ * Runs the mailboxes of any number of rooms on a fixed set of worker threads.
+ */
+class RoomScheduler {
+    private final ExecutorService workers;
+    private final AtomicInteger pending = new AtomicInteger();
+    // shared by all rooms so that an idle room does not carry its own histograms
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+
+    public RoomScheduler(int threads) {
+        this.workers = Executors.newFixedThreadPool(threads);
+    }
+
+    public <T> Mailbox<T> mailbox(int capacity, OverflowPolicy policy, int batchSize, Consumer<List<T>> handler) {
+        return new Mailbox<>(this, capacity, policy, batchSize, handler);
+    }
+
+    public LatencyHistogram queueLatency() {
+        return queueLatency;
+    }
+
+    public LatencyHistogram batchLatency() {
+        return batchLatency;
     }
 
-    public void submitAction(PlayerAction action) {
-        System.out.println("[" + roomId + "] RECEIVED: " + action);
-        actionQueue.offer(action);
+    public String metrics() {
+        LatencyHistogram.Snapshot waits = queueLatency.snapshot();
+        LatencyHistogram.Snapshot batches = batchLatency.snapshot();
+        return String.format("queue-wait p50=%.2fms p99=%.2fms batch p50=%.2fms p99=%.2fms",
+                waits.quantile(0.5) / 1e6, waits.quantile(0.99) / 1e6,
+                batches.quantile(0.5) / 1e6, batches.quantile(0.99) / 1e6);
     }
 
-    private void processAction(PlayerAction action) {
+    void schedule(Mailbox<?> mailbox) {
+        pending.incrementAndGet();
+        workers.execute(mailbox);
+    }
+
+    void finished() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Waits until every mailbox is drained, then stops the workers.
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
         try {
-            Thread.sleep(action.getProcessingTime());
+            while (pending.get() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            workers.shutdown();
+            if (!workers.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                workers.shutdownNow();
+                System.out.println("Room scheduler did not shut down in time");
+            }
         } catch (InterruptedException e) {
+            workers.shutdownNow();
             Thread.currentThread().interrupt();
         }
+    }
+}
 
-        switch (action.getActionType()) {
-            case JOIN_GAME:
-                players.putIfAbsent(
-                        action.getPlayerId(),
-                        new Player(action.getPlayerId())
-                );
-                System.out.println("[" + roomId + "] JOIN: "
-                        + action.getPlayerId());
-                break;
 
-            case LEAVE_GAME:
-                if (players.remove(action.getPlayerId()) != null) {
-                    System.out.println("[" + roomId + "] LEAVE: "
-                            + action.getPlayerId());
-                } else {
-                    System.out.println("[" + roomId
-                            + "] LEAVE IGNORED (not in room): "
-                            + action.getPlayerId());
-                }
-                break;
+class GameRoom {
+    private static final int ATTACK_SCORE = 10;
 
-            case ATTACK:
-                Player p = players.get(action.getPlayerId());
-                if (p == null) {
-                    System.out.println("[" + roomId
-                            + "] ATTACK IGNORED (not in room): "
-                            + action.getPlayerId());
-                } else {
-                    p.addScore(10);
-                    System.out.println("[" + roomId + "] ATTACK: " + p);
-                }
-                break;
-        }
+    public final String roomId;
+    public final Map<String, Player> players = new ConcurrentHashMap<>();
+
+    private final Mailbox<PlayerAction> actions;
+    private final LongAdder ignored = new LongAdder();
+
+    public volatile boolean running = true;
+
+    public GameRoom(String roomId, RoomScheduler scheduler) {
+        this(roomId, scheduler, 1024, OverflowPolicy.BLOCK, 32);
     }
 
-    public void shutdown() {
-        // TODO: Add missing logic
-        running = false;
-        executor.shutdown();
+    public GameRoom(String roomId, RoomScheduler scheduler, int queueCapacity, OverflowPolicy policy, int batchSize) {
+        this.roomId = roomId;
+        this.actions = scheduler.mailbox(queueCapacity, policy, batchSize, this::processActions);
+    }
 
-        try {
-            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                executor.shutdownNow();
-                System.out.println("Executor did not shut down in time");
+    /**
+     * Queues the action; false if the room is closed or its queue rejected it.
+     */
+    public boolean submitAction(PlayerAction action) throws InterruptedException {
+        if (!running) return false;
+        return actions.post(action);
+    }
+
+    // applies the batch in order, with the attacks of each player summed into one score update
+    private void processActions(List<PlayerAction> batch) {
+        int processingTime = 0;
+        Map<String, Integer> scoreDeltas = new HashMap<>();
+
+        for (PlayerAction action : batch) {
+            processingTime += action.getProcessingTime();
+            String playerId = action.getPlayerId();
+
+            switch (action.getActionType()) {
+                case JOIN_GAME:
+                    players.putIfAbsent(playerId, new Player(playerId));
+                    break;
+
+                case LEAVE_GAME:
+                    Player leaving = players.remove(playerId);
+                    if (leaving == null) {
+                        ignored.increment();
+                    } else {
+                        Integer delta = scoreDeltas.remove(playerId);
+                        if (delta != null) leaving.addScore(delta);
+                    }
+                    break;
+
+                case ATTACK:
+                    if (players.containsKey(playerId)) {
+                        scoreDeltas.merge(playerId, ATTACK_SCORE, Integer::sum);
+                    } else {
+                        ignored.increment();
+                    }
+                    break;
             }
+        }
+        scoreDeltas.forEach((playerId, delta) -> players.get(playerId).addScore(delta));
+
+        // simulated work, paid once for the whole batch
+        try {
+            Thread.sleep(processingTime);
         } catch (InterruptedException e) {
-            executor.shutdownNow();
             Thread.currentThread().interrupt();
         }
+    }
+
+    public int queueDepth() {
+        return actions.depth();
+    }
+
+    public String metrics() {
+        return actions.metrics() + " ignored=" + ignored.sum();
+    }
 
+    // the scheduler is drained before this is called
+    public void shutdown() {
+        running = false;
+
+        System.out.println("[" + roomId + "] METRICS: " + metrics());
         System.out.println("[" + roomId + "] FINAL PLAYERS:");
         players.values().forEach(p ->
                 System.out.println("  " + p));
@@ -196,8 +392,7 @@ class GameRoom {
 
 class GameServer {
 
-    private final BlockingQueue<RoomAction> inputQueue =
-            new LinkedBlockingQueue<>();
+    private final BlockingQueue<RoomAction> inputQueue;
 
     private final ConcurrentHashMap<String, GameRoom> rooms =
             new ConcurrentHashMap<>();
@@ -205,9 +400,23 @@ class GameServer {
     private final ExecutorService dispatcher =
             Executors.newSingleThreadExecutor();
 
+    private final RoomScheduler scheduler;
+    private final int queueCapacity;
+    private final OverflowPolicy policy;
+    private final int batchSize;
+
     private volatile boolean running = true;
 
     public GameServer() {
+        this(Runtime.getRuntime().availableProcessors(), 1024, OverflowPolicy.BLOCK, 32);
+    }
+
+    public GameServer(int workerThreads, int queueCapacity, OverflowPolicy policy, int batchSize) {
+        this.scheduler = new RoomScheduler(workerThreads);
+        this.inputQueue = new LinkedBlockingQueue<>(queueCapacity);
+        this.queueCapacity = queueCapacity;
+        this.policy = policy;
+        this.batchSize = batchSize;
         startDispatcher();
     }
 
@@ -219,7 +428,8 @@ class GameServer {
                     RoomAction roomAction = inputQueue.poll(100, TimeUnit.MILLISECONDS);
                     if (roomAction != null) {
                         // Get existing room or create a new one
-                        GameRoom room = rooms.computeIfAbsent(roomAction.roomId, GameRoom::new);
+                        GameRoom room = rooms.computeIfAbsent(roomAction.roomId,
+                                id -> new GameRoom(id, scheduler, queueCapacity, policy, batchSize));
                         room.submitAction(roomAction.action);
                     }
                 } catch (InterruptedException e) {
@@ -231,8 +441,13 @@ class GameServer {
     }
 
 
+    // waits while the dispatcher is behind, so bursts are held back at the source
     public void submit(String roomId, PlayerAction action) {
-        inputQueue.offer(new RoomAction(roomId, action));
+        try {
+            inputQueue.put(new RoomAction(roomId, action));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     // TODO: Implement GameServer shutdown() method
@@ -248,14 +463,67 @@ class GameServer {
             Thread.currentThread().interrupt();
         }
 
-        // Now tell the rooms to close
+        // Let the rooms finish their queued actions, then tell them to close
+        scheduler.shutdown(5, TimeUnit.SECONDS);
         rooms.values().forEach(GameRoom::shutdown);
+        System.out.println("ALL ROOMS: " + scheduler.metrics());
     }
 
 
 }
 
 
+class RoomSchedulerBenchmark {
+    private static final int MESSAGES_PER_ROOM = 20;
+
+    // each message is the time it was posted, so the handler can record its queueing latency
+    static void run(int rooms, int workers) throws InterruptedException {
+        RoomScheduler scheduler = new RoomScheduler(workers);
+        LatencyHistogram latency = new LatencyHistogram();
+        CountDownLatch done = new CountDownLatch(rooms * MESSAGES_PER_ROOM);
+        long[] lastSeen = new long[rooms];
+        boolean[] outOfOrder = new boolean[1];
+
+        List<Mailbox<Long>> mailboxes = new ArrayList<>(rooms);
+        for (int r = 0; r < rooms; r++) {
+            int room = r;
+            mailboxes.add(scheduler.mailbox(MESSAGES_PER_ROOM, OverflowPolicy.BLOCK, 32, batch -> {
+                for (long postedAt : batch) {
+                    latency.record(System.nanoTime() - postedAt);
+                    // rooms are never drained by two workers at once, so this needs no locking
+                    if (postedAt < lastSeen[room]) outOfOrder[0] = true;
+                    lastSeen[room] = postedAt;
+                    done.countDown();
+                }
+            }));
+        }
+
+        long start = System.nanoTime();
+        for (int m = 0; m < MESSAGES_PER_ROOM; m++) {
+            for (Mailbox<Long> mailbox : mailboxes) {
+                mailbox.post(System.nanoTime());
+            }
+        }
+        if (!done.await(60, TimeUnit.SECONDS)) throw new RuntimeException("ERROR: Messages were not processed");
+        long elapsed = System.nanoTime() - start;
+        int threads = Thread.activeCount();
+        scheduler.shutdown(5, TimeUnit.SECONDS);
+
+        if (outOfOrder[0]) throw new RuntimeException("ERROR: A room handled its messages out of order");
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf("%,8d rooms %3d workers %4d threads  %,12.0f msgs/s  p50 %,12d ns  p99 %,14d ns%n",
+                rooms, workers, threads, rooms * (double) MESSAGES_PER_ROOM * 1e9 / elapsed,
+                snapshot.quantile(0.5), snapshot.quantile(0.99));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int workers = Runtime.getRuntime().availableProcessors();
+        for (int rooms : new int[]{100, 1_000, 10_000, 50_000}) {
+            run(rooms, workers);
+        }
+    }
+}
+
 public class Main {
 
     public static void main(String[] args) throws IOException {
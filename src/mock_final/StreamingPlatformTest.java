@@ -1,12 +1,32 @@
 package mock_final;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 // ==================== EXCEPTIONS ====================
 
@@ -142,10 +162,14 @@ class WatchEvent {
     private Quality quality;
 
     public WatchEvent(String userId, String movieId, Quality quality) {
+        this(userId, movieId, quality, LocalDateTime.now());
+    }
+
+    public WatchEvent(String userId, String movieId, Quality quality, LocalDateTime timestamp) {
         this.userId = userId;
         this.movieId = movieId;
         this.quality = quality;
-        this.timestamp = LocalDateTime.now();
+        this.timestamp = timestamp;
     }
 
     public String getUserId() {
@@ -172,6 +196,96 @@ class WatchEvent {
     }
 }
 
+// ==================== WATCH EVENT STORE ====================
+
+/**
+ * Append-only columnar storage for watch events.
+ * User and movie ids are dictionary-encoded to ints, timestamps are kept as
+ * UTC epoch seconds and quality as its ordinal, so an event costs 17 bytes
+ * of array space instead of a WatchEvent object graph.
+ * <p>
+ * It holds the event log for the reports that need single events, movieIds() and
+ * getBingeWatchers(). The count reports read PlatformStatistics and CountRanking,
+ * which are updated per watch, instead of aggregating these columns on every call.
+ */
+class WatchEventStore {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Map<String, Integer> userIndex = new HashMap<>();
+    private final List<String> userIds = new ArrayList<>();
+    private final Map<String, Integer> movieIndex = new HashMap<>();
+    private final List<String> movieIds = new ArrayList<>();
+
+    private int[] users = new int[INITIAL_CAPACITY];
+    private int[] movies = new int[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private byte[] qualities = new byte[INITIAL_CAPACITY];
+    private int size;
+
+    public void add(String userId, String movieId, Quality quality, LocalDateTime timestamp) {
+        if (size == users.length) {
+            int capacity = size * 2;
+            users = Arrays.copyOf(users, capacity);
+            movies = Arrays.copyOf(movies, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            qualities = Arrays.copyOf(qualities, capacity);
+        }
+        users[size] = encode(userId, userIndex, userIds);
+        movies[size] = encode(movieId, movieIndex, movieIds);
+        timestamps[size] = timestamp.toEpochSecond(ZoneOffset.UTC);
+        qualities[size] = (byte) quality.ordinal();
+        size++;
+    }
+
+    private static int encode(String id, Map<String, Integer> index, List<String> ids) {
+        Integer code = index.get(id);
+        if (code == null) {
+            code = ids.size();
+            index.put(id, code);
+            ids.add(id);
+        }
+        return code;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int userCount() {
+        return userIds.size();
+    }
+
+    public int movieCount() {
+        return movieIds.size();
+    }
+
+    public String userId(int code) {
+        return userIds.get(code);
+    }
+
+    public String movieId(int code) {
+        return movieIds.get(code);
+    }
+
+    public int userAt(int i) {
+        return users[i];
+    }
+
+    public int movieAt(int i) {
+        return movies[i];
+    }
+
+    public long epochDayAt(int i) {
+        return Math.floorDiv(timestamps[i], 86400L);
+    }
+
+    public WatchEvent get(int i) {
+        return new WatchEvent(userIds.get(users[i]), movieIds.get(movies[i]),
+                Quality.values()[qualities[i]],
+                LocalDateTime.ofEpochSecond(timestamps[i], 0, ZoneOffset.UTC));
+    }
+}
+
 // ==================== USER CLASSES ====================
 
 abstract class User {
@@ -179,12 +293,15 @@ abstract class User {
     protected String email;
     protected String name;
     protected List<Movie> watchHistory;
+    // distinct movies in watchHistory, kept alongside it so the count is O(1)
+    private Set<Movie> uniqueMovies;
 
     public User(String id, String email, String name) {
         this.id = id;
         this.email = email;
         this.name = name;
         this.watchHistory = new ArrayList<>();
+        this.uniqueMovies = new HashSet<>();
     }
 
     public String getId() {
@@ -207,11 +324,11 @@ abstract class User {
 
     public void addToWatchHistory(Movie movie) {
         watchHistory.add(movie);
+        uniqueMovies.add(movie);
     }
 
     public int getUniqueMoviesWatched() {
-        return new HashSet<>(watchHistory)
-                .size();
+        return uniqueMovies.size();
     }
 
     @Override
@@ -271,273 +388,1097 @@ class PremiumUser extends User {
     }
 }
 
-class UserFactory {
-    public static User read(String[] parts) {
+// ==================== CATALOGUE LOADER ====================
+
+class LoadReport {
+    private final long rows;
+    private final long skippedLines;
+    private final long nanos;
+
+    public LoadReport(long rows, long skippedLines, long nanos) {
+        this.rows = rows;
+        this.skippedLines = skippedLines;
+        this.nanos = nanos;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    // blank lines and lines with too few fields
+    public long getSkippedLines() {
+        return skippedLines;
+    }
+
+    public double rowsPerSecond() {
+        return nanos == 0 ? 0.0 : rows * 1_000_000_000.0 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d rows, %d lines skipped, in %.1f ms (%.0f rows/sec)",
+                rows, skippedLines, nanos / 1_000_000.0, rowsPerSecond());
+    }
+}
+
+/**
+ * Parses the semicolon separated catalogue formats straight from a byte buffer.
+ * Numbers, genres and dates are read from the bytes in place; only the string
+ * fields that end up in the model objects are allocated.
+ * Blank lines and lines with too few fields (a P user without a subscription date
+ * included) are skipped and counted, where the old Scanner readers threw on them.
+ * Malformed genres, numbers and dates still throw.
+ */
+class CatalogueParser {
+    private static final byte SEPARATOR = ';';
+    private static final byte[][] GENRE_NAMES = Arrays.stream(Genre.values())
+            .map(genre -> genre.name().getBytes(StandardCharsets.US_ASCII))
+            .toArray(byte[][]::new);
+
+    private final ByteBuffer buffer;
+    private final int[] starts = new int[6];
+    private final int[] ends = new int[6];
+    private byte[] scratch = new byte[128];
+    private long skippedLines;
+
+    public CatalogueParser(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Splits the buffer into at most {@code chunks} ranges that start at the beginning of a line.
+     */
+    public static int[] chunkBoundaries(ByteBuffer buffer, int chunks) {
+        int limit = buffer.limit();
+        int[] boundaries = new int[chunks + 1];
+        boundaries[chunks] = limit;
+        for (int i = 1; i < chunks; i++) {
+            int pos = Math.max(boundaries[i - 1], (int) ((long) limit * i / chunks));
+            while (pos < limit && pos > 0 && buffer.get(pos - 1) != '\n') pos++;
+            boundaries[i] = pos;
+        }
+        return boundaries;
+    }
+
+    public long getSkippedLines() {
+        return skippedLines;
+    }
+
+    public List<Movie> parseMovies(int from, int to) {
+        // Format: id;title;genre;duration;year;rating
+        List<Movie> result = new ArrayList<>();
+        int pos = from;
+        while (pos < to) {
+            int end = lineEnd(pos, to);
+            if (split(pos, end) >= 6) {
+                result.add(new Movie(string(0), string(1), genre(2),
+                        (int) parseLong(starts[3], ends[3]), (int) parseLong(starts[4], ends[4]),
+                        parseDecimal(starts[5], ends[5])));
+            } else {
+                skippedLines++;
+            }
+            pos = end + 1;
+        }
+        return result;
+    }
+
+    public List<User> parseUsers(int from, int to) {
         // Format: F;id;email;name OR P;id;email;name;subscriptionDate
-        // Example: F;u001;john@email.com;John Doe
-        // Example: P;u002;jane@email.com;Jane Smith;2024-01-15T10:30:00
-        String type = parts[0];
-        String id = parts[1];
-        String email = parts[2];
-        String name = parts[3];
-        if (type.equals("P")) {
-            LocalDateTime subDate = LocalDateTime.parse(parts[4]);
-            return new PremiumUser(id, email, name, subDate);
+        List<User> result = new ArrayList<>();
+        int pos = from;
+        while (pos < to) {
+            int end = lineEnd(pos, to);
+            int fields = split(pos, end);
+            boolean premium = fields > 0 && buffer.get(starts[0]) == 'P';
+            if (premium && fields >= 5) {
+                result.add(new PremiumUser(string(1), string(2), string(3), dateTime(starts[4], ends[4])));
+            } else if (!premium && fields >= 4) {
+                result.add(new FreeUser(string(1), string(2), string(3)));
+            } else {
+                skippedLines++;
+            }
+            pos = end + 1;
+        }
+        return result;
+    }
+
+    private int lineEnd(int pos, int to) {
+        while (pos < to && buffer.get(pos) != '\n') pos++;
+        return pos;
+    }
+
+    // records field boundaries of the line into starts/ends and returns the number of fields
+    private int split(int from, int to) {
+        if (to > from && buffer.get(to - 1) == '\r') to--;
+        if (to == from) return 0;
+        int field = 0;
+        starts[0] = from;
+        for (int i = from; i < to && field < starts.length; i++) {
+            if (buffer.get(i) == SEPARATOR) {
+                ends[field++] = i;
+                if (field < starts.length) starts[field] = i + 1;
+            }
+        }
+        if (field < starts.length) ends[field++] = to;
+        return field;
+    }
+
+    private String string(int field) {
+        int length = ends[field] - starts[field];
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        buffer.get(starts[field], scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private Genre genre(int field) {
+        int length = ends[field] - starts[field];
+        outer:
+        for (int g = 0; g < GENRE_NAMES.length; g++) {
+            byte[] name = GENRE_NAMES[g];
+            if (name.length != length) continue;
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(starts[field] + i) != name[i]) continue outer;
+            }
+            return Genre.values()[g];
+        }
+        throw new IllegalArgumentException("Invalid genre: " + string(field));
+    }
+
+    private long parseLong(int from, int to) {
+        boolean negative = from < to && buffer.get(from) == '-';
+        if (negative) from++;
+        if (from == to) throw new NumberFormatException("Empty number");
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) throw new NumberFormatException("Invalid digit at offset " + i);
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    // plain decimals such as 8.8 are computed exactly; anything else goes through Double.parseDouble.
+    // 15 digits keep the mantissa below 2^53, so it and the power of ten are exact doubles
+    private double parseDecimal(int from, int to) {
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (b >= '0' && b <= '9' && digits < 15) {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fractionDigits >= 0) fractionDigits++;
+            } else {
+                return Double.parseDouble(stringAt(from, to));
+            }
+        }
+        return fractionDigits <= 0 ? mantissa : mantissa / Math.pow(10, fractionDigits);
+    }
+
+    // yyyy-MM-ddTHH:mm[:ss]
+    private LocalDateTime dateTime(int from, int to) {
+        int length = to - from;
+        if ((length != 16 && length != 19) || buffer.get(from + 10) != 'T')
+            return LocalDateTime.parse(stringAt(from, to));
+        int second = length == 19 ? (int) parseLong(from + 17, from + 19) : 0;
+        return LocalDateTime.of((int) parseLong(from, from + 4), (int) parseLong(from + 5, from + 7),
+                (int) parseLong(from + 8, from + 10), (int) parseLong(from + 11, from + 13),
+                (int) parseLong(from + 14, from + 16), second);
+    }
+
+    private String stringAt(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes, 0, bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// ==================== PLATFORM STATISTICS ====================
+
+/**
+ * Counts per id, kept ordered by highest count first and ties by id, so the top k
+ * are read off the front without looking at the rest. An increment moves one entry.
+ */
+class CountRanking {
+    private static final Comparator<Count> RANKING =
+            Comparator.comparingLong((Count count) -> count.value).reversed()
+                    .thenComparing(count -> count.id);
+
+    private static final class Count {
+        final String id;
+        long value;
+
+        Count(String id) {
+            this.id = id;
         }
-        return new FreeUser(id, email, name);
+    }
+
+    private final Map<String, Count> counts = new HashMap<>();
+    private final TreeSet<Count> ranked = new TreeSet<>(RANKING);
+
+    public void increment(String id) {
+        add(id, 1);
+    }
+
+    public void add(String id, long delta) {
+        Count count = counts.get(id);
+        if (count == null) {
+            count = new Count(id);
+            counts.put(id, count);
+        } else {
+            ranked.remove(count);
+        }
+        count.value += delta;
+        ranked.add(count);
+    }
+
+    public List<String> top(int k) {
+        List<String> top = new ArrayList<>(Math.max(0, Math.min(k, ranked.size())));
+        for (Iterator<Count> it = ranked.iterator(); top.size() < k && it.hasNext(); ) {
+            top.add(it.next().id);
+        }
+        return top;
+    }
 
+    public String first() {
+        return ranked.isEmpty() ? null : ranked.first().id;
+    }
+
+    /**
+     * The top k over rankings that count disjoint sets of ids, merged from the front of each.
+     */
+    public static List<String> top(List<CountRanking> rankings, int k) {
+        if (k <= 0) return new ArrayList<>();
+        // the head of every ranking that still has entries, paired with the rest of it
+        PriorityQueue<Map.Entry<Count, Iterator<Count>>> heads =
+                new PriorityQueue<>(Math.max(1, rankings.size()), Map.Entry.comparingByKey(RANKING));
+        for (CountRanking ranking : rankings) {
+            Iterator<Count> it = ranking.ranked.iterator();
+            if (it.hasNext()) heads.add(Map.entry(it.next(), it));
+        }
+        List<String> top = new ArrayList<>();
+        while (top.size() < k && !heads.isEmpty()) {
+            Map.Entry<Count, Iterator<Count>> head = heads.poll();
+            top.add(head.getKey().id);
+            Iterator<Count> it = head.getValue();
+            if (it.hasNext()) heads.add(Map.entry(it.next(), it));
+        }
+        return top;
     }
 }
+
+/**
+ * Report statistics kept up to date as movies, users and watch events are added,
+ * so reading them does not depend on the number of recorded events.
+ */
+class PlatformStatistics {
+    private final long[] moviesPerGenre = new long[Genre.values().length];
+    private final double[] watchedRatingSums = new double[Genre.values().length];
+    private final long[] watchesPerGenre = new long[Genre.values().length];
+    private final Map<Integer, Long> watchesByReleaseYear = new TreeMap<>(Comparator.reverseOrder());
+    // kept per stripe; a user's watches all land on one stripe, a movie's do not
+    private final CountRanking userRanking = new CountRanking();
+    private long freeUsers;
+    private long premiumUsers;
+
+    public void movieAdded(Movie movie, Movie replaced) {
+        if (replaced != null) moviesPerGenre[replaced.getGenre().ordinal()]--;
+        moviesPerGenre[movie.getGenre().ordinal()]++;
+    }
+
+    public void userAdded(User user, User replaced) {
+        if (replaced != null) countUser(replaced, -1);
+        countUser(user, 1);
+    }
+
+    private void countUser(User user, int delta) {
+        if (user instanceof PremiumUser) premiumUsers += delta;
+        else if (user instanceof FreeUser) freeUsers += delta;
+    }
+
+    public void watched(User user, Movie movie) {
+        int genre = movie.getGenre().ordinal();
+        watchedRatingSums[genre] += movie.getRating();
+        watchesPerGenre[genre]++;
+        watchesByReleaseYear.merge(movie.getReleaseYear(), 1L, Long::sum);
+        userRanking.increment(user.getId());
+    }
+
+    // adds the genre and year watch counts of other, which was kept for a different set of users
+    public void addWatches(PlatformStatistics other) {
+        for (int genre = 0; genre < watchesPerGenre.length; genre++) {
+            watchedRatingSums[genre] += other.watchedRatingSums[genre];
+            watchesPerGenre[genre] += other.watchesPerGenre[genre];
+        }
+        other.watchesByReleaseYear.forEach((year, count) -> watchesByReleaseYear.merge(year, count, Long::sum));
+    }
+
+    public Map<String, Long> moviesPerGenre() {
+        Map<String, Long> result = new HashMap<>();
+        for (Genre genre : Genre.values()) {
+            if (moviesPerGenre[genre.ordinal()] > 0)
+                result.put(genre.name(), moviesPerGenre[genre.ordinal()]);
+        }
+        return result;
+    }
+
+    public Map<String, Double> averageRatingPerGenre() {
+        Map<String, Double> result = new TreeMap<>();
+        for (Genre genre : Genre.values()) {
+            if (watchesPerGenre[genre.ordinal()] > 0)
+                result.put(genre.name(), watchedRatingSums[genre.ordinal()] / watchesPerGenre[genre.ordinal()]);
+        }
+        return result;
+    }
+
+    public Map<Integer, Long> watchesByReleaseYear() {
+        return watchesByReleaseYear;
+    }
+
+    public CountRanking userRanking() {
+        return userRanking;
+    }
+
+    public long freeUsers() {
+        return freeUsers;
+    }
+
+    public long premiumUsers() {
+        return premiumUsers;
+    }
+}
+
+// ==================== WATCH STRIPE ====================
+
+/**
+ * The watch state of the users hashed to one stripe: their events, monthly
+ * counters and watch statistics. All of it is guarded by the stripe's lock.
+ */
+class WatchStripe {
+    private final Lock lock = new ReentrantLock();
+    private final WatchEventStore events = new WatchEventStore();
+    // userId -> (month -> number of watches), updated on every recorded event
+    private final Map<String, Map<YearMonth, Integer>> monthlyWatchCounts = new HashMap<>();
+    private final PlatformStatistics statistics = new PlatformStatistics();
+
+    public Lock getLock() {
+        return lock;
+    }
+
+    public WatchEventStore getEvents() {
+        return events;
+    }
+
+    public PlatformStatistics getStatistics() {
+        return statistics;
+    }
+
+    public void record(User user, Movie movie, Quality quality, LocalDateTime timestamp) {
+        events.add(user.getId(), movie.getId(), quality, timestamp);
+        user.addToWatchHistory(movie);
+        monthlyWatchCounts
+                .computeIfAbsent(user.getId(), k -> new HashMap<>())
+                .merge(YearMonth.from(timestamp), 1, Integer::sum);
+        statistics.watched(user, movie);
+    }
+
+    public Map<YearMonth, Integer> monthlyWatchCounts(String userId) {
+        return monthlyWatchCounts.getOrDefault(userId, Collections.emptyMap());
+    }
+
+    public int monthlyWatchCount(String userId, YearMonth month) {
+        return monthlyWatchCounts(userId).getOrDefault(month, 0);
+    }
+}
+
 // ==================== STREAMING PLATFORM ====================
 
+/**
+ * Thread-safe: watchMovie can be called from many threads at once.
+ * Users are hashed to stripes that each keep their own event log, monthly counters
+ * and watch statistics, so a watch only takes its user's stripe lock and watches of
+ * users on different stripes never wait for each other.
+ * Catalogue loads take the write lock. The reporting methods take the read lock and
+ * every stripe lock, so they see one consistent snapshot. The rankings are kept in
+ * order as watches come in, so a top-k report reads only the entries it returns.
+ * movieIds() lists events stripe by stripe, in watch order for any one user.
+ */
 class StreamingPlatform {
+    private static final int USER_STRIPES = 64;
+
     private Map<String, Movie> movies;
     private Map<String, User> users;
-    private List<WatchEvent> watchEvents;
+    // catalogue counts, the watch counts are kept per stripe
+    private PlatformStatistics statistics;
+    private final WatchStripe[] stripes;
+    // a movie is watched on every stripe, so its count is ranked here; changed under a stripe
+    // lock and this one, so a report holding every stripe lock can read it without this one
+    private final CountRanking movieRanking = new CountRanking();
+    private final Lock movieRankingLock = new ReentrantLock();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
     public StreamingPlatform() {
-        this.movies = new HashMap<>();
-        this.users = new HashMap<>();
-        this.watchEvents = new ArrayList<>();
+        this.movies = new ConcurrentHashMap<>();
+        this.users = new ConcurrentHashMap<>();
+        this.statistics = new PlatformStatistics();
+        this.stripes = new WatchStripe[USER_STRIPES];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new WatchStripe();
+        }
+    }
+
+    private WatchStripe stripe(String userId) {
+        return stripes[(userId.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    // runs a report with catalogue loads kept out
+    private <T> T readCatalogue(Supplier<T> report) {
+        lock.readLock().lock();
+        try {
+            return report.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // runs a report with catalogue loads and watches kept out; stripes are always locked in index order
+    private <T> T readSnapshot(Supplier<T> report) {
+        lock.readLock().lock();
+        int locked = 0;
+        try {
+            for (; locked < stripes.length; locked++) {
+                stripes[locked].getLock().lock();
+            }
+            return report.get();
+        } finally {
+            while (locked > 0) {
+                stripes[--locked].getLock().unlock();
+            }
+            lock.readLock().unlock();
+        }
+    }
+
+    // callers hold every stripe lock
+    private List<String> mostActiveUserIds(int k) {
+        List<CountRanking> rankings = new ArrayList<>(stripes.length);
+        for (WatchStripe stripe : stripes) {
+            rankings.add(stripe.getStatistics().userRanking());
+        }
+        return CountRanking.top(rankings, k);
     }
 
+    // callers hold every stripe lock
+    private PlatformStatistics watchStatistics() {
+        PlatformStatistics merged = new PlatformStatistics();
+        for (WatchStripe stripe : stripes) {
+            merged.addWatches(stripe.getStatistics());
+        }
+        return merged;
+    }
+
+    // blank and short lines are skipped, see CatalogueParser; the Path overloads report how many
     public void readMovies(InputStream is) {
         // Format: id;title;genre;duration;year;rating
         // Example: m001;Inception;SCIFI;148;2010;8.8
+        loadMovies(readAll(is), 1);
+    }
+
+    public void readUsers(InputStream is) {
+        // Format: F;id;email;name OR P;id;email;name;subscriptionDate
+        // Example: F;u001;john@email.com;John Doe
+        // Example: P;u002;jane@email.com;Jane Smith;2024-01-15T10:30:00
+        loadUsers(readAll(is), 1);
+    }
+
+    /**
+     * Bulk loads movies from a memory-mapped file, parsing it in {@code parallelism} chunks.
+     */
+    public LoadReport readMovies(Path file, int parallelism) throws IOException {
+        return loadMovies(map(file), parallelism);
+    }
+
+    /**
+     * Bulk loads users from a memory-mapped file, parsing it in {@code parallelism} chunks.
+     */
+    public LoadReport readUsers(Path file, int parallelism) throws IOException {
+        return loadUsers(map(file), parallelism);
+    }
 
-        Scanner scanner = new Scanner(is);
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
-            String[] words = line.split(";");
-            String id = words[0];
-            String title = words[1];
-            Genre genre = Genre.valueOf(words[2]);
-            int duration = Integer.parseInt(words[3]);
-            int year = Integer.parseInt(words[4]);
-            double rating = Double.parseDouble(words[5]);
-            movies.put(id, new Movie(id, title, genre, duration, year, rating));
+    private LoadReport loadMovies(ByteBuffer buffer, int parallelism) {
+        long start = System.nanoTime();
+        LongAdder skipped = new LongAdder();
+        List<Movie> loaded = parseChunks(buffer, parallelism, CatalogueParser::parseMovies, skipped);
+        lock.writeLock().lock();
+        try {
+            loaded.forEach(movie -> statistics.movieAdded(movie, movies.put(movie.getId(), movie)));
+        } finally {
+            lock.writeLock().unlock();
         }
+        return new LoadReport(loaded.size(), skipped.sum(), System.nanoTime() - start);
     }
 
-    public void readUsers(InputStream is) {
-        Scanner scanner = new Scanner(is);
+    private LoadReport loadUsers(ByteBuffer buffer, int parallelism) {
+        long start = System.nanoTime();
+        LongAdder skipped = new LongAdder();
+        List<User> loaded = parseChunks(buffer, parallelism, CatalogueParser::parseUsers, skipped);
+        lock.writeLock().lock();
+        try {
+            loaded.forEach(user -> statistics.userAdded(user, users.put(user.getId(), user)));
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return new LoadReport(loaded.size(), skipped.sum(), System.nanoTime() - start);
+    }
+
+    private interface ChunkParser<T> {
+        List<T> parse(CatalogueParser parser, int from, int to);
+    }
+
+    // chunks are merged in file order, so a repeated id keeps its last occurrence as before
+    private static <T> List<T> parseChunks(ByteBuffer buffer, int parallelism, ChunkParser<T> chunkParser,
+                                           LongAdder skipped) {
+        int chunks = Math.max(1, parallelism);
+        int[] boundaries = CatalogueParser.chunkBoundaries(buffer, chunks);
+        return IntStream.range(0, chunks)
+                .parallel()
+                .mapToObj(i -> {
+                    CatalogueParser parser = new CatalogueParser(buffer);
+                    List<T> rows = chunkParser.parse(parser, boundaries[i], boundaries[i + 1]);
+                    skipped.add(parser.getSkippedLines());
+                    return rows;
+                })
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+    }
 
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
-            String[] parts = line.split(";");
-            User user = UserFactory.read(parts);
-            users.put(user.getId(), user);
+    private static ByteBuffer readAll(InputStream is) {
+        try {
+            return ByteBuffer.wrap(is.readAllBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+    }
 
+    private static ByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("File too large to map: " + file);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
     }
 
     public void watchMovie(String userId, String movieId, String quality)
             throws UserNotFoundException, MovieNotFoundException, UserPrivilegeException {
-        if (!movies.containsKey(movieId)) throw new MovieNotFoundException(movieId);
-        if (!users.containsKey(userId)) throw new UserNotFoundException(userId);
-
-        User user = users.get(userId);
         Movie movie = movies.get(movieId);
+        if (movie == null) throw new MovieNotFoundException(movieId);
+        User user = users.get(userId);
+        if (user == null) throw new UserNotFoundException(userId);
+
         Quality qualityValue = Quality.fromString(quality);
-        int monthlyWatchCount = getMonthlyWatchCount(userId);
 
-        if (user.canWatch(qualityValue, monthlyWatchCount)) {
-            WatchEvent watchEvent = new WatchEvent(userId, movieId, qualityValue);
-            watchEvents.add(watchEvent);
-            user.watchHistory.add(movie);
+        WatchStripe stripe = stripe(userId);
+        stripe.getLock().lock();
+        try {
+            LocalDateTime timestamp = LocalDateTime.now();
+            int monthlyWatchCount = stripe.monthlyWatchCount(userId, YearMonth.from(timestamp));
+            if (user.canWatch(qualityValue, monthlyWatchCount)) {
+                stripe.record(user, movie, qualityValue, timestamp);
+                movieRankingLock.lock();
+                try {
+                    movieRanking.increment(movieId);
+                } finally {
+                    movieRankingLock.unlock();
+                }
+            }
+        } finally {
+            stripe.getLock().unlock();
         }
     }
 
-    private int getMonthlyWatchCount(String userId) {
-        return (int) watchEvents.stream()
-                .filter(watchEvent -> watchEvent.getUserId().equals(userId))
-                .filter(e -> e.getTimestamp().getYear() == LocalDateTime.now().getYear()
-                        && e.getTimestamp().getMonth() == LocalDateTime.now().getMonth())
-                .count();
-
+    int getMonthlyWatchCount(String userId) {
+        WatchStripe stripe = stripe(userId);
+        stripe.getLock().lock();
+        try {
+            return stripe.monthlyWatchCount(userId, YearMonth.now());
+        } finally {
+            stripe.getLock().unlock();
+        }
     }
 
     public Map<String, List<Movie>> getMoviesByGenre(int minRating) {
-        Map<String, List<Movie>> grouped = movies.values().stream()
-                .filter(movie -> movie.getRating() > minRating)
-                .collect(Collectors.groupingBy(
-                        movie -> movie.getGenre().name(),
-                        TreeMap::new,
-                        Collectors.toList()
-                ));
-        grouped.values().forEach(list -> list.sort(
-                Comparator.comparing(Movie::getRating).reversed()
-                        .thenComparing(Movie::getTitle)
-        ));
-        return grouped;
+        return readCatalogue(() -> {
+            Map<String, List<Movie>> grouped = movies.values().stream()
+                    .filter(movie -> movie.getRating() > minRating)
+                    .collect(Collectors.groupingBy(
+                            movie -> movie.getGenre().name(),
+                            TreeMap::new,
+                            Collectors.toList()
+                    ));
+            grouped.values().forEach(list -> list.sort(
+                    Comparator.comparing(Movie::getRating).reversed()
+                            .thenComparing(Movie::getTitle)
+            ));
+            return grouped;
+        });
     }
 
     public Map<Integer, Long> getWatchStatsByYear() {
-        return watchEvents.stream()
-                .map(watchEvent -> movies.get(watchEvent.getMovieId()))
-                .collect(Collectors.groupingBy(
-                        Movie::getReleaseYear,
-                        () -> new TreeMap<>(Comparator.reverseOrder()),
-                        Collectors.counting()
-                ));
+        return readSnapshot(() -> watchStatistics().watchesByReleaseYear());
     }
 
     public List<User> getTopNUsers(int n) {
-        return users.values().stream()
-                .sorted(Comparator.comparingInt(User::getUniqueMoviesWatched).reversed().thenComparing(User::getId))
-                .limit(n)
-                .collect(Collectors.toList());
+        return readSnapshot(() -> {
+            if (n <= 0) return new ArrayList<>();
+            Comparator<User> ranking = Comparator.comparingInt(User::getUniqueMoviesWatched).reversed()
+                    .thenComparing(User::getId);
+
+            // bounded heap with the weakest of the current top n on top
+            PriorityQueue<User> top = new PriorityQueue<>(Math.max(1, Math.min(n, users.size())), ranking.reversed());
+            for (User user : users.values()) {
+                if (top.size() < n) {
+                    top.add(user);
+                } else if (ranking.compare(user, top.peek()) < 0) {
+                    top.poll();
+                    top.add(user);
+                }
+            }
+
+            List<User> result = new ArrayList<>(top);
+            result.sort(ranking);
+            return result;
+        });
     }
 
     public Map<String, Double> getAverageRatingByGenre() {
-        Map<String, Double> groupedByGenre = watchEvents.stream()
-                .map(event -> movies.get(event.getMovieId()))
-                .collect(Collectors.groupingBy(
-                        movie -> movie.getGenre().name(),
-                        () -> new TreeMap<>(),
-                        Collectors.averagingDouble(Movie::getRating)
-                ));
-
-        return groupedByGenre.entrySet().stream()
+        return readSnapshot(() -> watchStatistics().averageRatingPerGenre().entrySet().stream()
                 .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
                 .collect(Collectors.toMap(
                         Map.Entry::getKey,
                         Map.Entry::getValue,
                         (e1, e2) -> e1,
                         LinkedHashMap::new
-                ));
+                )));
     }
 
     public Map<String, Long> moviesByGenreDistribution() {
-        return movies.values()
-                .stream()
-                .collect(Collectors.groupingBy(
-                        movie -> movie.getGenre().name(),
-                        Collectors.counting()
-                ));
+        return readCatalogue(() -> statistics.moviesPerGenre());
     }
 
     public long premiumUsersCount() {
-        return users.values()
-                .stream()
-                .filter(user -> user instanceof PremiumUser)
-                .count();
+        return readCatalogue(() -> statistics.premiumUsers());
     }
 
     public long freeUsersCount() {
-        return users.values()
-                .stream()
-                .filter(user -> user instanceof FreeUser)
-                .count();
+        return readCatalogue(() -> statistics.freeUsers());
     }
 
     public long totalUsers() {
-        return premiumUsersCount() + freeUsersCount();
+        return readCatalogue(() -> premiumUsersCount() + freeUsersCount());
     }
 
     public double premiumUserPercentage() {
-        if (totalUsers() == 0) return 0.0;
-        return (premiumUsersCount() * 100.0) / totalUsers();
+        return readCatalogue(() -> {
+            long total = totalUsers();
+            if (total == 0) return 0.0;
+            return (premiumUsersCount() * 100.0) / total;
+        });
     }
+
     public double freeUserPercentage() {
-        if (totalUsers() == 0) return 0.0;
-        return (freeUsersCount() * 100.0) / totalUsers();
+        return readCatalogue(() -> {
+            long total = totalUsers();
+            if (total == 0) return 0.0;
+            return (freeUsersCount() * 100.0) / total;
+        });
     }
 
     public List<String> movieIds() {
-        return watchEvents.stream()
-                .map(WatchEvent::getMovieId)
-                .collect(Collectors.toList());
+        return readSnapshot(() -> {
+            List<String> ids = new ArrayList<>();
+            for (WatchStripe stripe : stripes) {
+                WatchEventStore events = stripe.getEvents();
+                for (int i = 0; i < events.size(); i++) {
+                    ids.add(events.movieId(events.movieAt(i)));
+                }
+            }
+            return ids;
+        });
     }
 
     public Movie mostWatchedMovie() {
+        return readSnapshot(() -> {
+            String id = movieRanking.first();
+            return id == null ? null : movies.get(id);
+        });
+    }
 
-        Map<String, Integer> moviesCount = new TreeMap<>();
-
-        movieIds().forEach(id -> moviesCount.put(id, moviesCount.getOrDefault(id, 0) + 1));
-
-        String mostWatchedId = moviesCount.entrySet().stream()
-                .max(Map.Entry.comparingByValue())
-                .map(Map.Entry::getKey)
-                .orElse("No movies watched");
+    public User mostActiveUser() {
+        return readSnapshot(() -> {
+            List<String> top = mostActiveUserIds(1);
+            return top.isEmpty() ? null : users.get(top.get(0));
+        });
+    }
 
-        return movies.get(mostWatchedId);
+    public List<Movie> mostWatchedMovies(int k) {
+        return readSnapshot(() -> movieRanking.top(k).stream()
+                .map(movies::get)
+                .collect(Collectors.toList()));
     }
 
-    public User mostActiveUser() {
-        return watchEvents.stream()
-                .collect(Collectors.groupingBy(
-                        WatchEvent::getUserId,
-                        Collectors.counting()
-                ))
-                .entrySet().stream()
-                .max(Map.Entry.comparingByValue())
-                .map(stringLongEntry -> users.get(stringLongEntry.getKey()))
-                .orElse(null);
+    public List<User> mostActiveUsers(int k) {
+        return readSnapshot(() -> mostActiveUserIds(k).stream()
+                .map(users::get)
+                .collect(Collectors.toList()));
     }
 
     public void generateReport(OutputStream os) {
-        PrintWriter pw = new PrintWriter(os);
+        readSnapshot(() -> {
+            PrintWriter pw = new PrintWriter(os);
 
-        pw.println("========== STREAMING PLATFORM REPORT ==========");
-        pw.println("Total Movies: " + movies.size());
-        pw.println("Total Users: " + users.size());
-        pw.println("Total Watches: " + watchEvents.size());
-        pw.println();
+            pw.println("========== STREAMING PLATFORM REPORT ==========");
+            pw.println("Total Movies: " + movies.size());
+            pw.println("Total Users: " + users.size());
+            pw.println("Total Watches: " + Arrays.stream(stripes).mapToLong(stripe -> stripe.getEvents().size()).sum());
+            pw.println();
 
-        pw.println("Movies Distribution: " + moviesByGenreDistribution());
+            pw.println("Movies Distribution: " + moviesByGenreDistribution());
 
-        pw.println("Free Plan users " + freeUserPercentage());
+            pw.println("Free Plan users " + freeUserPercentage());
 
-        pw.println("Premium Plan users " + premiumUserPercentage());
+            pw.println("Premium Plan users " + premiumUserPercentage());
 
-        pw.println("Most watched movie: " + mostWatchedMovie());
+            pw.println("Most watched movie: " + mostWatchedMovie());
 
-        pw.println("Most active user: " + mostActiveUser());
-        pw.flush();
+            pw.println("Most active user: " + mostActiveUser());
+            pw.flush();
+            return null;
+        });
     }
 
     // BONUS METHODS
 
     public List<User> getBingeWatchers() {
-        Map<String, Map<LocalDate, Long>> watchesByUserAndDate = watchEvents.stream()
-                .collect(Collectors.groupingBy(
-                        WatchEvent::getUserId,
-                        Collectors.groupingBy(
-                                event -> event.getTimestamp().toLocalDate(),
-                                Collectors.counting()
-                        )
-                ));
-
-        Set<String> bingeWatchersId = watchesByUserAndDate.entrySet().stream()
-                .filter(entry -> entry.getValue().values().stream()
-                        .anyMatch(count -> count >= 5))
-                .map(Map.Entry::getKey)
-                .collect(Collectors.toSet());
-
-        return bingeWatchersId.stream()
-                .map(userId -> users.get(userId))
-                .collect(Collectors.toList());
+        return readSnapshot(() -> {
+            Map<String, Map<LocalDate, Long>> watchesByUserAndDate = new HashMap<>();
+            for (WatchStripe stripe : stripes) {
+                WatchEventStore events = stripe.getEvents();
+                for (int i = 0; i < events.size(); i++) {
+                    watchesByUserAndDate
+                            .computeIfAbsent(events.userId(events.userAt(i)), k -> new HashMap<>())
+                            .merge(LocalDate.ofEpochDay(events.epochDayAt(i)), 1L, Long::sum);
+                }
+            }
+
+            Set<String> bingeWatchersId = watchesByUserAndDate.entrySet().stream()
+                    .filter(entry -> entry.getValue().values().stream()
+                            .anyMatch(count -> count >= 5))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toSet());
+
+            return bingeWatchersId.stream()
+                    .map(userId -> users.get(userId))
+                    .collect(Collectors.toList());
+        });
     }
 
     public List<FreeUser> getPremiumConversionCandidates() {
-        // TODO: Find FreeUsers who hit monthly limit 2+ times
-        return users.values().stream()
-                .filter(user -> user instanceof FreeUser)
-                .map(user -> (FreeUser) user)
-                .filter(freeUser -> {
-                    Map<YearMonth, Long> watchesPerMonth = watchEvents.stream()
-                            .filter(event -> event.getUserId().equals(freeUser.getId()))
-                            .collect(Collectors.groupingBy(
-                                    event -> YearMonth.from(event.getTimestamp()),
-                                    Collectors.counting()
-                            ));
-                    long monthsAtLimit = watchesPerMonth.values().stream()
-                            .filter(count -> count >= 5)
-                            .count();
-                    return monthsAtLimit >= 2;
-                })
+        return readSnapshot(() -> {
+            // TODO: Find FreeUsers who hit monthly limit 2+ times
+            return users.values().stream()
+                    .filter(user -> user instanceof FreeUser)
+                    .map(user -> (FreeUser) user)
+                    .filter(freeUser -> {
+                        long monthsAtLimit = stripe(freeUser.getId())
+                                .monthlyWatchCounts(freeUser.getId())
+                                .values().stream()
+                                .filter(count -> count >= 5)
+                                .count();
+                        return monthsAtLimit >= 2;
+                    })
+                    .collect(Collectors.toList());
+        });
+    }
+}
+
+// ==================== BENCHMARKS ====================
+
+class WatchTask implements Callable<Integer> {
+    private final StreamingPlatform platform;
+    private final String userId;
+    private final int watches;
+    private final int movies;
+
+    public WatchTask(StreamingPlatform platform, String userId, int watches, int movies) {
+        this.platform = platform;
+        this.userId = userId;
+        this.watches = watches;
+        this.movies = movies;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        int recorded = 0;
+        for (int i = 0; i < watches; i++) {
+            try {
+                platform.watchMovie(userId, String.format("m%03d", i % movies), "720p");
+                recorded++;
+            } catch (UserPrivilegeException e) {
+                // free user over the monthly limit
+            }
+        }
+        return recorded;
+    }
+}
+
+class StreamingPlatformConcurrencyTest {
+    private static final int MOVIES = 100;
+    private static final int FREE_USERS = 200;
+    private static final int PREMIUM_USERS = 200;
+    private static final int WATCHES_PER_TASK = 500;
+    private static final int TASKS_PER_USER = 4;
+
+    static StreamingPlatform createPlatform() {
+        StringBuilder movies = new StringBuilder();
+        for (int i = 0; i < MOVIES; i++) {
+            movies.append(String.format("m%03d;Movie %d;DRAMA;120;%d;%d.5%n", i, i, 1990 + i % 30, 5 + i % 5));
+        }
+        StringBuilder users = new StringBuilder();
+        for (int i = 0; i < FREE_USERS; i++) {
+            users.append(String.format("F;f%d;f%d@email.com;Free %d%n", i, i, i));
+        }
+        for (int i = 0; i < PREMIUM_USERS; i++) {
+            users.append(String.format("P;p%d;p%d@email.com;Premium %d;2024-01-15T10:30:00%n", i, i, i));
+        }
+
+        StreamingPlatform platform = new StreamingPlatform();
+        platform.readMovies(new ByteArrayInputStream(movies.toString().getBytes()));
+        platform.readUsers(new ByteArrayInputStream(users.toString().getBytes()));
+        return platform;
+    }
+
+    static long run(int threads, boolean reporting) throws InterruptedException, ExecutionException {
+        StreamingPlatform platform = createPlatform();
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        // several tasks per user so the same user is hit from different threads
+        for (int t = 0; t < TASKS_PER_USER; t++) {
+            for (int i = 0; i < FREE_USERS; i++) tasks.add(new WatchTask(platform, "f" + i, WATCHES_PER_TASK, MOVIES));
+            for (int i = 0; i < PREMIUM_USERS; i++) tasks.add(new WatchTask(platform, "p" + i, WATCHES_PER_TASK, MOVIES));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // reports read snapshots while the watches are being recorded
+        AtomicBoolean watching = new AtomicBoolean(true);
+        ExecutorService reporter = Executors.newSingleThreadExecutor();
+        Future<Integer> reports = reporter.submit(() -> {
+            int count = 0;
+            while (reporting && watching.get()) {
+                platform.generateReport(OutputStream.nullOutputStream());
+                platform.getTopNUsers(10);
+                platform.getBingeWatchers();
+                count++;
+            }
+            return count;
+        });
+        long start = System.nanoTime();
+        long recorded = 0;
+        try {
+            for (Future<Integer> f : executor.invokeAll(tasks)) {
+                recorded += f.get();
+            }
+        } finally {
+            executor.shutdown();
+            watching.set(false);
+            reporter.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+        int reportCount = reports.get();
+
+        // every free user must stop at exactly 5 watches, premium users get all of theirs
+        long expected = FREE_USERS * 5L + (long) PREMIUM_USERS * TASKS_PER_USER * WATCHES_PER_TASK;
+        if (recorded != expected || platform.movieIds().size() != expected) {
+            throw new RuntimeException(String.format("ERROR: Expected %d watches, recorded %d, stored %d",
+                    expected, recorded, platform.movieIds().size()));
+        }
+        long watchedByYear = platform.getWatchStatsByYear().values().stream().mapToLong(Long::longValue).sum();
+        if (watchedByYear != expected) {
+            throw new RuntimeException("ERROR: Statistics out of sync with event log: " + watchedByYear);
+        }
+
+        checkRankings(platform);
+
+        long attempts = (long) tasks.size() * WATCHES_PER_TASK;
+        System.out.printf("%2d threads: %,d watch calls in %.1f ms (%,.0f calls/sec)%s%n",
+                threads, attempts, elapsed / 1_000_000.0, attempts * 1_000_000_000.0 / elapsed,
+                reporting ? String.format(", %d reports alongside", reportCount) : "");
+        return elapsed;
+    }
+
+    // the kept rankings must match ranking the event log from scratch
+    static void checkRankings(StreamingPlatform platform) {
+        Comparator<Map.Entry<String, Long>> ranking = Map.Entry.<String, Long>comparingByValue().reversed()
+                .thenComparing(Map.Entry.comparingByKey());
+        List<String> expectedMovies = platform.movieIds().stream()
+                .collect(Collectors.groupingBy(id -> id, Collectors.counting()))
+                .entrySet().stream()
+                .sorted(ranking)
+                .limit(10)
+                .map(Map.Entry::getKey)
                 .collect(Collectors.toList());
+        List<String> movies = platform.mostWatchedMovies(10).stream().map(Movie::getId).collect(Collectors.toList());
+        if (!movies.equals(expectedMovies) || !platform.mostWatchedMovie().getId().equals(expectedMovies.get(0)))
+            throw new RuntimeException("ERROR: Most watched " + movies + ", expected " + expectedMovies);
+
+        // premium users all watch the same number of times, so they rank by id ahead of every free user
+        List<String> expectedUsers = IntStream.range(0, PREMIUM_USERS)
+                .mapToObj(i -> "p" + i)
+                .sorted()
+                .limit(10)
+                .collect(Collectors.toList());
+        List<String> users = platform.mostActiveUsers(10).stream().map(User::getId).collect(Collectors.toList());
+        if (!users.equals(expectedUsers) || !platform.mostActiveUser().getId().equals(expectedUsers.get(0)))
+            throw new RuntimeException("ERROR: Most active " + users + ", expected " + expectedUsers);
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            run(threads, false);
+        }
+        run(8, true);
+        System.out.println("✔ CONCURRENCY CHECKS PASSED");
+    }
+}
+
+/**
+ * Times the FreeUser quota check at a growing number of recorded events:
+ * the monthly counter index against the scan over every event it replaced.
+ */
+class MonthlyWatchCountBenchmark {
+    private static final int USERS = 1_000;
+    private static final int MOVIES = 100;
+
+    // getMonthlyWatchCount as it was, run on every watchMovie call
+    static int scan(List<WatchEvent> watchEvents, String userId) {
+        return (int) watchEvents.stream()
+                .filter(watchEvent -> watchEvent.getUserId().equals(userId))
+                .filter(e -> e.getTimestamp().getYear() == LocalDateTime.now().getYear()
+                        && e.getTimestamp().getMonth() == LocalDateTime.now().getMonth())
+                .count();
+    }
+
+    static StreamingPlatform createPlatform(String[] userIds, String[] movieIds) {
+        StringBuilder movies = new StringBuilder();
+        for (int i = 0; i < movieIds.length; i++) {
+            movies.append(String.format("%s;Movie %d;DRAMA;120;%d;8.0%n", movieIds[i], i, 1990 + i % 30));
+        }
+        StringBuilder users = new StringBuilder();
+        for (int i = 0; i < userIds.length; i++) {
+            users.append(String.format("P;%s;%s@email.com;User %d;2024-01-15T10:30:00%n", userIds[i], userIds[i], i));
+        }
+        StreamingPlatform platform = new StreamingPlatform();
+        platform.readMovies(new ByteArrayInputStream(movies.toString().getBytes()));
+        platform.readUsers(new ByteArrayInputStream(users.toString().getBytes()));
+        return platform;
+    }
+
+    static void run(int events) throws Exception {
+        String[] userIds = IntStream.range(0, USERS).mapToObj(i -> "u" + i).toArray(String[]::new);
+        String[] movieIds = IntStream.range(0, MOVIES).mapToObj(i -> "m" + i).toArray(String[]::new);
+
+        StreamingPlatform platform = createPlatform(userIds, movieIds);
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            platform.watchMovie(userIds[i % USERS], movieIds[i % MOVIES], "1080p");
+        }
+        double ingestSeconds = (System.nanoTime() - start) / 1e9;
+
+        int indexChecks = 1_000_000;
+        long indexed = 0;
+        start = System.nanoTime();
+        for (int c = 0; c < indexChecks; c++) {
+            indexed += platform.getMonthlyWatchCount(userIds[c % USERS]);
+        }
+        double indexNanos = (double) (System.nanoTime() - start) / indexChecks;
+        int[] expected = new int[USERS];
+        for (int u = 0; u < USERS; u++) expected[u] = platform.getMonthlyWatchCount(userIds[u]);
+        long expectedIndexed = 0;
+        for (int c = 0; c < indexChecks; c++) expectedIndexed += expected[c % USERS];
+        if (indexed != expectedIndexed)
+            throw new RuntimeException("ERROR: Quota checks counted " + indexed + " watches, expected " + expectedIndexed);
+        platform = null;
+
+        LocalDateTime now = LocalDateTime.now();
+        List<WatchEvent> watchEvents = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            watchEvents.add(new WatchEvent(userIds[i % USERS], movieIds[i % MOVIES], Quality.P1080, now));
+        }
+        int scanChecks = (int) Math.max(10, Math.min(10_000, 100_000_000L / events));
+        int[] scanned = new int[scanChecks];
+        start = System.nanoTime();
+        for (int c = 0; c < scanChecks; c++) {
+            scanned[c] = scan(watchEvents, userIds[c % USERS]);
+        }
+        double scanNanos = (double) (System.nanoTime() - start) / scanChecks;
+        for (int c = 0; c < scanChecks; c++) {
+            if (scanned[c] != expected[c % USERS])
+                throw new RuntimeException("ERROR: Index counts " + expected[c % USERS] + " watches, the scan " + scanned[c]);
+        }
+
+        System.out.printf("%,11d events   watchMovie %,10.0f calls/sec   quota check: index %,6.0f ns   scan %,14.0f ns (%,.0fx)%n",
+                events, events / ingestSeconds, indexNanos, scanNanos, scanNanos / indexNanos);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int largest = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        for (int events : new int[]{10_000, 1_000_000, 10_000_000}) {
+            if (events <= largest) run(events);
+        }
+    }
+}
+
+/**
+ * Measures the heap retained per watch event by the old List<WatchEvent> and by WatchEventStore.
+ */
+class WatchEventHeapBenchmark {
+    private static final int EVENTS = 1_000_000;
+    private static final int USERS = 1_000;
+    private static final int MOVIES = 100;
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : EVENTS;
+        String[] userIds = IntStream.range(0, USERS).mapToObj(i -> "u" + i).toArray(String[]::new);
+        String[] movieIds = IntStream.range(0, MOVIES).mapToObj(i -> "m" + i).toArray(String[]::new);
+        // one timestamp object per event, as LocalDateTime.now() in watchMovie produced
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+        long before = usedHeap();
+        List<WatchEvent> list = new ArrayList<>();
+        for (int i = 0; i < events; i++) {
+            list.add(new WatchEvent(userIds[i % USERS], movieIds[i % MOVIES], Quality.P720, start.plusSeconds(i)));
+        }
+        long listBytes = usedHeap() - before;
+        int listSize = list.size();
+        list = null;
+
+        before = usedHeap();
+        WatchEventStore store = new WatchEventStore();
+        for (int i = 0; i < events; i++) {
+            store.add(userIds[i % USERS], movieIds[i % MOVIES], Quality.P720, start.plusSeconds(i));
+        }
+        long storeBytes = usedHeap() - before;
+        if (store.size() != listSize || !store.get(events - 1).getTimestamp().equals(start.plusSeconds(events - 1)))
+            throw new RuntimeException("ERROR: Store does not hold the events it was given");
+
+        System.out.printf("%,d events: List<WatchEvent> %.1f bytes/event, WatchEventStore %.1f bytes/event (%.1fx smaller)%n",
+                events, (double) listBytes / events, (double) storeBytes / events, (double) listBytes / storeBytes);
     }
 }
 
@@ -2,6 +2,7 @@ package office_hours;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 
 public class FakeApiPing {
 
@@ -37,49 +38,209 @@ public class FakeApiPing {
         }
     }
 
-    public static void main(String[] args) throws Exception {
-        Scanner sc = new Scanner(System.in);
+    @FunctionalInterface
+    public interface ApiCall {
+        String call(int parameter) throws InterruptedException;
+    }
 
-        int n = sc.nextInt(); // number of API calls
+    /**
+     * Non-blocking client for calls whose response depends only on the parameter.
+     * <p>
+     * Concurrent requests for a parameter share one call, and a successful response stays
+     * cached for {@code cacheMillis} after it arrives. A call still running after
+     * {@code hedgeAfterMillis} gets a second, hedged call and the first one to answer wins;
+     * it cancels the other. {@link #getAll} issues a batch at once and waits for all of it
+     * against a single deadline.
+     */
+    public static class AsyncApiClient {
+        private final ExecutorService executor;
+        private final ApiCall api;
+        private final long hedgeAfterMillis;
+        private final long cacheMillis;
+        private final ConcurrentHashMap<Integer, CompletableFuture<String>> cache = new ConcurrentHashMap<>();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder hedges = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+
+        /**
+         * A non-positive {@code hedgeAfterMillis} turns hedging off, and a non-positive
+         * {@code cacheMillis} drops a response as soon as the requests waiting for it have it.
+         */
+        public AsyncApiClient(ExecutorService executor, ApiCall api, long hedgeAfterMillis, long cacheMillis) {
+            this.executor = executor;
+            this.api = api;
+            this.hedgeAfterMillis = hedgeAfterMillis;
+            this.cacheMillis = cacheMillis;
+        }
 
-        List<Callable<ApiResult>> tasks = new ArrayList<>();
+        public CompletableFuture<String> get(int parameter) {
+            while (true) {
+                CompletableFuture<String> existing = cache.get(parameter);
+                if (existing == null) {
+                    CompletableFuture<String> fresh = new CompletableFuture<>();
+                    existing = cache.putIfAbsent(parameter, fresh);
+                    if (existing == null) {
+                        // failures are not cached, the next request for the parameter tries again
+                        fresh.whenComplete((value, error) -> {
+                            if (error != null || cacheMillis <= 0) {
+                                cache.remove(parameter, fresh);
+                            } else {
+                                CompletableFuture.delayedExecutor(cacheMillis, TimeUnit.MILLISECONDS)
+                                        .execute(() -> cache.remove(parameter, fresh));
+                            }
+                        });
+                        fetch(parameter, fresh);
+                        return fresh.copy();
+                    }
+                }
+                if (existing.isCompletedExceptionally()) {
+                    // failed, but its removal has not run yet
+                    cache.remove(parameter, existing);
+                    continue;
+                }
+                cacheHits.increment();
+                // callers get a copy so cancelling one does not cancel the shared call
+                return existing.copy();
+            }
+        }
 
-        for (int i = 0; i < n; i++) {
-            int parameter = sc.nextInt();
+        private void fetch(int parameter, CompletableFuture<String> result) {
+            List<Future<?>> running = new CopyOnWriteArrayList<>();
+            try {
+                start(parameter, result, running);
+            } catch (RejectedExecutionException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            if (hedgeAfterMillis > 0) {
+                CompletableFuture.delayedExecutor(hedgeAfterMillis, TimeUnit.MILLISECONDS, executor).execute(() -> {
+                    if (result.isDone()) return;
+                    hedges.increment();
+                    start(parameter, result, running);
+                });
+            }
+        }
 
-            // requestId is the loop index
-            int requestId = i+1;
-            //TODO add a Callable that invokes the API get method in the tasks list
-            tasks.add(() -> Api.get(requestId, parameter));
+        private void start(int parameter, CompletableFuture<String> result, List<Future<?>> running) {
+            Attempt attempt = new Attempt(parameter, result, running);
+            running.add(attempt.task);
+            executor.execute(attempt.task);
         }
 
-        ExecutorService executor =
-                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        // one call for a request; the call that settles the result cancels the others, never itself
+        private final class Attempt implements Runnable {
+            private final int parameter;
+            private final CompletableFuture<String> result;
+            private final List<Future<?>> running;
+            private final FutureTask<Void> task = new FutureTask<>(this, null);
 
-        List<Future<ApiResult>> futures = new ArrayList<>();
-        //TODO submit all callables to the executure and get the Futures
-        for (Callable<ApiResult> task : tasks) {
-            futures.add(executor.submit(task));
+            Attempt(int parameter, CompletableFuture<String> result, List<Future<?>> running) {
+                this.parameter = parameter;
+                this.result = result;
+                this.running = running;
+            }
+
+            @Override
+            public void run() {
+                if (!call(parameter, result)) return;
+                for (Future<?> other : running) {
+                    if (other != task) other.cancel(true);
+                }
+            }
         }
 
-        List<ApiResult> results = new ArrayList<>();
+        // whether this call completed the result
+        private boolean call(int parameter, CompletableFuture<String> result) {
+            if (result.isDone()) return false;
+            calls.increment();
+            try {
+                return result.complete(api.call(parameter));
+            } catch (InterruptedException e) {
+                // usually the other call of a hedged pair already answered and this does nothing;
+                // otherwise the call was cut off and waiting requests must not hang on it
+                Thread.currentThread().interrupt();
+                return result.completeExceptionally(e);
+            } catch (RuntimeException e) {
+                return result.completeExceptionally(e);
+            }
+        }
 
-        long timeoutMillis = 200;
+        /**
+         * Results in the order of the parameters, with request ids starting at 1.
+         * Calls that did not answer before the deadline are reported as TIMEOUT.
+         */
+        public List<ApiResult> getAll(int[] parameters, long deadlineMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+            List<CompletableFuture<String>> futures = new ArrayList<>(parameters.length);
+            for (int parameter : parameters) {
+                futures.add(get(parameter));
+            }
 
-        //TODO get the ApiResult from all the futures and allow a max timeout of timeoutMillis
-        for (int i = 0; i < futures.size(); i++) {
-            Future<ApiResult> future = futures.get(i);
-            int requestId = i + 1;
+            try {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                        .get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // the results below tell which calls timed out or failed
+            }
 
-            try{
-                results.add(future.get(timeoutMillis, TimeUnit.MILLISECONDS));
-            }catch (TimeoutException e){
-                future.cancel(true);
-                results.add(new ApiResult(requestId,false,  "TIMEOUT"));
+            List<ApiResult> results = new ArrayList<>(parameters.length);
+            for (int i = 0; i < futures.size(); i++) {
+                CompletableFuture<String> future = futures.get(i);
+                int requestId = i + 1;
+                if (!future.isDone()) {
+                    future.cancel(false);
+                    results.add(new ApiResult(requestId, false, "TIMEOUT"));
+                } else if (future.isCompletedExceptionally()) {
+                    results.add(new ApiResult(requestId, false, "ERROR"));
+                } else {
+                    results.add(new ApiResult(requestId, true, future.join()));
+                }
             }
+            return results;
         }
 
-        executor.shutdown();
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        public long getHedges() {
+            return hedges.sum();
+        }
+
+        public long getCacheHits() {
+            return cacheHits.sum();
+        }
+
+        // calls that had not started yet never will, so their requests fail instead of waiting
+        public void shutdown() {
+            executor.shutdownNow();
+            cache.values().forEach(future -> future.completeExceptionally(new CancellationException("Client shut down")));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Scanner sc = new Scanner(System.in);
+
+        int n = sc.nextInt(); // number of API calls
+
+        int[] parameters = new int[n];
+        for (int i = 0; i < n; i++) {
+            parameters[i] = sc.nextInt();
+        }
+
+        long timeoutMillis = 200;
+
+        // the calls only sleep, so a virtual thread each is enough; Api latency depends only on
+        // the parameter, so a hedged call would not answer sooner and hedging stays off
+        AsyncApiClient client = new AsyncApiClient(Executors.newVirtualThreadPerTaskExecutor(),
+                parameter -> Api.get(0, parameter).value, 0, 0);
+        List<ApiResult> results;
+        try {
+            // one deadline for all the calls instead of timeoutMillis per call in turn
+            results = client.getAll(parameters, timeoutMillis);
+        } finally {
+            client.shutdown();
+        }
         // Sorting by requestId
         results.sort(Comparator.comparingInt(r -> r.requestId));
 
@@ -0,0 +1,154 @@
+package office_hours;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+public class FakeApiPingBenchmark {
+    private static final int CALLS = 10_000;
+    private static final long TIMEOUT_MILLIS = 200;
+    private static final long DEADLINE_MILLIS = 10_000;
+    private static final long HEDGE_AFTER_MILLIS = 5;
+    private static final long CACHE_MILLIS = 60_000;
+
+    // answers in about a millisecond, but one call in a hundred stalls for 50 ms
+    static String jitteryApi(int parameter) throws InterruptedException {
+        Thread.sleep(ThreadLocalRandom.current().nextInt(100) == 0 ? 50 : 1);
+        return "VALUE_" + parameter;
+    }
+
+    // what FakeApiPing.main used to do: a pool sized to the CPUs and a timeout per future in turn
+    static void runFixedPool(String workload, int[] parameters) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        long start = System.nanoTime();
+        List<Future<String>> futures = new ArrayList<>();
+        for (int parameter : parameters) {
+            futures.add(executor.submit(() -> jitteryApi(parameter)));
+        }
+        int ok = 0;
+        for (Future<String> future : futures) {
+            try {
+                future.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                ok++;
+            } catch (TimeoutException | ExecutionException e) {
+                future.cancel(true);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdownNow();
+        System.out.printf("%-9s %-10s %,8.0f ms   ok %,6d   calls %,6d   hedges %,5d   cache hits %,6d%n",
+                workload, "fixed", elapsed / 1e6, ok, parameters.length, 0, 0);
+    }
+
+    static void runAsync(String workload, int[] parameters) throws InterruptedException {
+        FakeApiPing.AsyncApiClient client = new FakeApiPing.AsyncApiClient(
+                Executors.newVirtualThreadPerTaskExecutor(), FakeApiPingBenchmark::jitteryApi, HEDGE_AFTER_MILLIS, CACHE_MILLIS);
+        long start = System.nanoTime();
+        List<FakeApiPing.ApiResult> results;
+        try {
+            results = client.getAll(parameters, DEADLINE_MILLIS);
+        } finally {
+            client.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        int ok = 0;
+        for (int i = 0; i < results.size(); i++) {
+            FakeApiPing.ApiResult result = results.get(i);
+            if (result.requestId != i + 1) throw new RuntimeException("ERROR: Results are out of order");
+            if (!result.success) continue;
+            if (!result.value.equals("VALUE_" + parameters[i]))
+                throw new RuntimeException("ERROR: Request " + result.requestId + " got " + result.value);
+            ok++;
+        }
+        System.out.printf("%-9s %-10s %,8.0f ms   ok %,6d   calls %,6d   hedges %,5d   cache hits %,6d%n",
+                workload, "async", elapsed / 1e6, ok, client.getCalls(), client.getHedges(), client.getCacheHits());
+    }
+
+    // a call cut off by an interrupt must fail its waiting requests, and the next request must call again
+    static void checkInterruptedCall() throws Exception {
+        AtomicReference<Thread> caller = new AtomicReference<>();
+        CountDownLatch started = new CountDownLatch(1);
+        FakeApiPing.AsyncApiClient client = new FakeApiPing.AsyncApiClient(Executors.newCachedThreadPool(), parameter -> {
+            if (caller.compareAndSet(null, Thread.currentThread())) {
+                started.countDown();
+                Thread.sleep(60_000);
+            }
+            return "VALUE_" + parameter;
+        }, 0, CACHE_MILLIS);
+        try {
+            CompletableFuture<String> first = client.get(1);
+            started.await();
+            caller.get().interrupt();
+            try {
+                first.get(5, TimeUnit.SECONDS);
+                throw new RuntimeException("ERROR: Interrupted call answered");
+            } catch (ExecutionException e) {
+                // expected
+            } catch (TimeoutException e) {
+                throw new RuntimeException("ERROR: Request still waits on an interrupted call");
+            }
+            if (!client.get(1).get(5, TimeUnit.SECONDS).equals("VALUE_1") || client.getCalls() != 2)
+                throw new RuntimeException("ERROR: Failed call was not retried");
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    // the call that answers must not interrupt itself; without hedging nothing else should be interrupted either
+    static void checkWinnerNotInterrupted() throws Exception {
+        LongAdder interrupted = new LongAdder();
+        ExecutorService executor = new ThreadPoolExecutor(4, 4, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()) {
+            @Override
+            protected void afterExecute(Runnable task, Throwable error) {
+                if (Thread.interrupted()) interrupted.increment();
+            }
+        };
+        FakeApiPing.AsyncApiClient client = new FakeApiPing.AsyncApiClient(executor, parameter -> {
+            Thread.sleep(1);
+            return "VALUE_" + parameter;
+        }, 0, 0);
+        try {
+            for (int parameter = 0; parameter < 20; parameter++) client.get(parameter).get(5, TimeUnit.SECONDS);
+            if (interrupted.sum() != 0) throw new RuntimeException("ERROR: " + interrupted.sum() + " answering calls interrupted themselves");
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    // responses are kept for cacheMillis, then the next request calls again
+    static void checkCacheExpiry() throws Exception {
+        FakeApiPing.AsyncApiClient client = new FakeApiPing.AsyncApiClient(Executors.newCachedThreadPool(),
+                parameter -> "VALUE_" + parameter, 0, 50);
+        try {
+            client.get(1).get(5, TimeUnit.SECONDS);
+            client.get(1).get(5, TimeUnit.SECONDS);
+            if (client.getCalls() != 1) throw new RuntimeException("ERROR: A cached response was fetched again");
+            Thread.sleep(500);
+            client.get(1).get(5, TimeUnit.SECONDS);
+            if (client.getCalls() != 2) throw new RuntimeException("ERROR: An expired response was still cached");
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkInterruptedCall();
+        checkWinnerNotInterrupted();
+        checkCacheExpiry();
+
+        int[] distinct = new int[CALLS];
+        int[] repeated = new int[CALLS];
+        for (int i = 0; i < CALLS; i++) {
+            distinct[i] = i;
+            repeated[i] = i % 100;
+        }
+
+        runFixedPool("distinct", distinct);
+        runAsync("distinct", distinct);
+        runFixedPool("repeated", repeated);
+        runAsync("repeated", repeated);
+    }
+}
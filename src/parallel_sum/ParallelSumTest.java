@@ -2,53 +2,462 @@ package parallel_sum;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntPredicate;
+import java.util.function.LongBinaryOperator;
+import java.util.stream.IntStream;
 
-class SumTask implements Callable<Long> {
-    private int[] array;
-    private int start, end;
+interface IntAccumulator {
+    long apply(long accumulated, int value);
+}
+
+/**
+ * Folds a range of int values into a long, and combines the results of two ranges.
+ * The built-in reducers run a plain loop per leaf so the JIT can unroll and vectorize it.
+ */
+abstract class IntReducer {
+    public static final IntReducer SUM = new IntReducer() {
+        @Override
+        public long reduce(int[] array, int from, int to) {
+            long sum = 0;
+            for (int i = from; i < to; i++) sum += array[i];
+            return sum;
+        }
+
+        @Override
+        public long combine(long left, long right) {
+            return left + right;
+        }
+    };
+
+    public static final IntReducer MIN = new IntReducer() {
+        @Override
+        public long reduce(int[] array, int from, int to) {
+            int min = Integer.MAX_VALUE;
+            for (int i = from; i < to; i++) min = Math.min(min, array[i]);
+            return min;
+        }
+
+        @Override
+        public long combine(long left, long right) {
+            return Math.min(left, right);
+        }
+    };
+
+    public static final IntReducer MAX = new IntReducer() {
+        @Override
+        public long reduce(int[] array, int from, int to) {
+            int max = Integer.MIN_VALUE;
+            for (int i = from; i < to; i++) max = Math.max(max, array[i]);
+            return max;
+        }
+
+        @Override
+        public long combine(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    public abstract long reduce(int[] array, int from, int to);
+
+    public abstract long combine(long left, long right);
+
+    public static IntReducer count(IntPredicate predicate) {
+        return of(0, (acc, v) -> predicate.test(v) ? acc + 1 : acc, Long::sum);
+    }
+
+    public static IntReducer of(long identity, IntAccumulator accumulator, LongBinaryOperator combiner) {
+        return new IntReducer() {
+            @Override
+            public long reduce(int[] array, int from, int to) {
+                long acc = identity;
+                for (int i = from; i < to; i++) acc = accumulator.apply(acc, array[i]);
+                return acc;
+            }
+
+            @Override
+            public long combine(long left, long right) {
+                return combiner.applyAsLong(left, right);
+            }
+        };
+    }
+}
+
+abstract class LongReducer {
+    public static final LongReducer SUM = new LongReducer() {
+        @Override
+        public long reduce(long[] array, int from, int to) {
+            long sum = 0;
+            for (int i = from; i < to; i++) sum += array[i];
+            return sum;
+        }
+
+        @Override
+        public long combine(long left, long right) {
+            return left + right;
+        }
+    };
+
+    public static final LongReducer MIN = of(Long.MAX_VALUE, Math::min, Math::min);
+    public static final LongReducer MAX = of(Long.MIN_VALUE, Math::max, Math::max);
+
+    public abstract long reduce(long[] array, int from, int to);
+
+    public abstract long combine(long left, long right);
+
+    public static LongReducer of(long identity, LongBinaryOperator accumulator, LongBinaryOperator combiner) {
+        return new LongReducer() {
+            @Override
+            public long reduce(long[] array, int from, int to) {
+                long acc = identity;
+                for (int i = from; i < to; i++) acc = accumulator.applyAsLong(acc, array[i]);
+                return acc;
+            }
+
+            @Override
+            public long combine(long left, long right) {
+                return combiner.applyAsLong(left, right);
+            }
+        };
+    }
+}
+
+abstract class DoubleReducer {
+    public static final DoubleReducer SUM = new DoubleReducer() {
+        @Override
+        public double reduce(double[] array, int from, int to) {
+            double sum = 0.0;
+            for (int i = from; i < to; i++) sum += array[i];
+            return sum;
+        }
+
+        @Override
+        public double combine(double left, double right) {
+            return left + right;
+        }
+    };
+
+    public static final DoubleReducer MIN = of(Double.POSITIVE_INFINITY, Math::min, Math::min);
+    public static final DoubleReducer MAX = of(Double.NEGATIVE_INFINITY, Math::max, Math::max);
+
+    public abstract double reduce(double[] array, int from, int to);
+
+    public abstract double combine(double left, double right);
+
+    public static DoubleReducer of(double identity, DoubleBinaryOperator accumulator, DoubleBinaryOperator combiner) {
+        return new DoubleReducer() {
+            @Override
+            public double reduce(double[] array, int from, int to) {
+                double acc = identity;
+                for (int i = from; i < to; i++) acc = accumulator.applyAsDouble(acc, array[i]);
+                return acc;
+            }
 
-    public SumTask(int[] array, int start, int end) {
+            @Override
+            public double combine(double left, double right) {
+                return combiner.applyAsDouble(left, right);
+            }
+        };
+    }
+}
+
+/**
+ * Splits [from, to) in halves until a range is below the threshold, or until the worker
+ * already has enough queued work for others to steal. Results stay in primitive fields.
+ */
+abstract class RangeTask<T extends RangeTask<T>> extends RecursiveAction {
+    private static final int SURPLUS_QUEUED_TASKS = 3;
+
+    protected final int from, to;
+    protected final int threshold;
+
+    protected RangeTask(int from, int to, int threshold) {
+        this.from = from;
+        this.to = to;
+        this.threshold = threshold;
+    }
+
+    protected abstract T create(int from, int to);
+
+    protected abstract void computeDirectly();
+
+    protected abstract void merge(T left, T right);
+
+    @Override
+    protected void compute() {
+        if (to - from <= threshold || getSurplusQueuedTaskCount() > SURPLUS_QUEUED_TASKS) {
+            computeDirectly();
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        T left = create(from, mid);
+        T right = create(mid, to);
+        left.fork();
+        right.compute();
+        left.join();
+        merge(left, right);
+    }
+}
+
+class IntReduceTask extends RangeTask<IntReduceTask> {
+    private final int[] array;
+    private final IntReducer reducer;
+    long result;
+
+    public IntReduceTask(int[] array, int start, int end, int threshold, IntReducer reducer) {
+        super(start, end, threshold);
         this.array = array;
-        this.start = start;
-        this.end = end;
+        this.reducer = reducer;
     }
 
     @Override
-    public Long call() {
-        long localSum = 0;
-        for (int i = start; i < end; i++) {
-            localSum += array[i];
+    protected IntReduceTask create(int from, int to) {
+        return new IntReduceTask(array, from, to, threshold, reducer);
+    }
+
+    @Override
+    protected void computeDirectly() {
+        result = reducer.reduce(array, from, to);
+    }
+
+    @Override
+    protected void merge(IntReduceTask left, IntReduceTask right) {
+        result = reducer.combine(left.result, right.result);
+    }
+}
+
+class LongReduceTask extends RangeTask<LongReduceTask> {
+    private final long[] array;
+    private final LongReducer reducer;
+    long result;
+
+    public LongReduceTask(long[] array, int start, int end, int threshold, LongReducer reducer) {
+        super(start, end, threshold);
+        this.array = array;
+        this.reducer = reducer;
+    }
+
+    @Override
+    protected LongReduceTask create(int from, int to) {
+        return new LongReduceTask(array, from, to, threshold, reducer);
+    }
+
+    @Override
+    protected void computeDirectly() {
+        result = reducer.reduce(array, from, to);
+    }
+
+    @Override
+    protected void merge(LongReduceTask left, LongReduceTask right) {
+        result = reducer.combine(left.result, right.result);
+    }
+}
+
+class DoubleReduceTask extends RangeTask<DoubleReduceTask> {
+    private final double[] array;
+    private final DoubleReducer reducer;
+    double result;
+
+    public DoubleReduceTask(double[] array, int start, int end, int threshold, DoubleReducer reducer) {
+        super(start, end, threshold);
+        this.array = array;
+        this.reducer = reducer;
+    }
+
+    @Override
+    protected DoubleReduceTask create(int from, int to) {
+        return new DoubleReduceTask(array, from, to, threshold, reducer);
+    }
+
+    @Override
+    protected void computeDirectly() {
+        result = reducer.reduce(array, from, to);
+    }
+
+    @Override
+    protected void merge(DoubleReduceTask left, DoubleReduceTask right) {
+        result = reducer.combine(left.result, right.result);
+    }
+}
+
+class HistogramTask extends RangeTask<HistogramTask> {
+    private final int[] array;
+    private final int min, bucketWidth, bucketCount;
+    long[] buckets;
+
+    public HistogramTask(int[] array, int start, int end, int threshold, int min, int bucketWidth, int bucketCount) {
+        super(start, end, threshold);
+        this.array = array;
+        this.min = min;
+        this.bucketWidth = bucketWidth;
+        this.bucketCount = bucketCount;
+    }
+
+    @Override
+    protected HistogramTask create(int from, int to) {
+        return new HistogramTask(array, from, to, threshold, min, bucketWidth, bucketCount);
+    }
+
+    @Override
+    protected void computeDirectly() {
+        buckets = new long[bucketCount];
+        for (int i = from; i < to; i++) {
+            long bucket = ((long) array[i] - min) / bucketWidth;
+            if (array[i] >= min && bucket < buckets.length) buckets[(int) bucket]++;
+        }
+    }
+
+    @Override
+    protected void merge(HistogramTask left, HistogramTask right) {
+        // reuse the right child's array, the left one is dropped
+        buckets = right.buckets;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] += left.buckets[i];
         }
-        return localSum;
     }
 }
 
-public class ParallelSumTest {
-    public static void main(String[] args) throws InterruptedException, ExecutionException {
-        int[] data = new int[1_000_000];
-        Random r = new Random();
-        for(int i=0; i<data.length; i++) data[i] = r.nextInt(100) + 1;
+/**
+ * Parallel reductions over primitive arrays on a fork/join pool.
+ */
+class ParallelReducer {
+    private static final int MIN_GRAIN = 8 * 1024;
+    // leaves per worker when the split is not cut short by idle workers stealing
+    private static final int LEAVES_PER_WORKER = 8;
 
-        int numThreads = 4;
-        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    private final ForkJoinPool pool;
 
-        List<Future<Long>> futures = new ArrayList<>();
+    public ParallelReducer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public ParallelReducer() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    private int threshold(int length) {
+        return Math.max(MIN_GRAIN, length / (pool.getParallelism() * LEAVES_PER_WORKER));
+    }
 
+    public long reduce(int[] array, IntReducer reducer) {
+        IntReduceTask task = new IntReduceTask(array, 0, array.length, threshold(array.length), reducer);
+        pool.invoke(task);
+        return task.result;
+    }
+
+    public long reduce(long[] array, LongReducer reducer) {
+        LongReduceTask task = new LongReduceTask(array, 0, array.length, threshold(array.length), reducer);
+        pool.invoke(task);
+        return task.result;
+    }
+
+    public double reduce(double[] array, DoubleReducer reducer) {
+        DoubleReduceTask task = new DoubleReduceTask(array, 0, array.length, threshold(array.length), reducer);
+        pool.invoke(task);
+        return task.result;
+    }
+
+    public long sum(int[] array) {
+        return reduce(array, IntReducer.SUM);
+    }
+
+    public long min(int[] array) {
+        return reduce(array, IntReducer.MIN);
+    }
+
+    public long max(int[] array) {
+        return reduce(array, IntReducer.MAX);
+    }
+
+    public long count(int[] array, IntPredicate predicate) {
+        return reduce(array, IntReducer.count(predicate));
+    }
+
+    /**
+     * Counts values of [min, min + bucketWidth * bucketCount) per bucket; other values are ignored.
+     */
+    public long[] histogram(int[] array, int min, int bucketWidth, int bucketCount) {
+        if (bucketWidth <= 0) throw new IllegalArgumentException("Bucket width must be positive: " + bucketWidth);
+        if (bucketCount < 0) throw new IllegalArgumentException("Bucket count must not be negative: " + bucketCount);
+        HistogramTask task = new HistogramTask(array, 0, array.length, threshold(array.length),
+                min, bucketWidth, bucketCount);
+        pool.invoke(task);
+        return task.buckets;
+    }
+}
+
+public class ParallelSumTest {
+    private static final int RUNS = 10;
+
+    static long fixedPoolSum(ExecutorService executor, int[] data, int numThreads) throws InterruptedException, ExecutionException {
+        List<Future<Long>> futures = new ArrayList<>();
         int chunkSize = data.length / numThreads;
         for (int i = 0; i < numThreads; i++) {
             int start = i * chunkSize;
             int end = (i == numThreads - 1) ? data.length : (i + 1) * chunkSize;
-            SumTask task = new SumTask(data, start, end);
-            futures.add(executor.submit(task));
+            futures.add(executor.submit(() -> sequentialSum(data, start, end)));
         }
-
         long globalTotal = 0;
-        for (Future<Long> f : futures){
+        for (Future<Long> f : futures) {
             globalTotal += f.get();
         }
+        return globalTotal;
+    }
+
+    static long sequentialSum(int[] data, int start, int end) {
+        long localSum = 0;
+        for (int i = start; i < end; i++) {
+            localSum += data[i];
+        }
+        return localSum;
+    }
 
+    interface SumRun {
+        long run() throws Exception;
+    }
 
+    // best of RUNS, in microseconds
+    static double time(long expected, SumRun run) throws Exception {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            long result = run.run();
+            best = Math.min(best, System.nanoTime() - start);
+            if (result != expected) throw new RuntimeException("ERROR: Expected " + expected + " but got " + result);
+        }
+        return best / 1000.0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] data = new int[1_000_000];
+        Random r = new Random();
+        for(int i=0; i<data.length; i++) data[i] = r.nextInt(100) + 1;
+
+        ParallelReducer reducer = new ParallelReducer();
+        long globalTotal = reducer.sum(data);
         System.out.println("Total Sum " + globalTotal);
-        executor.shutdown();
+        System.out.println("Min " + reducer.min(data) + ", Max " + reducer.max(data)
+                + ", Over 50: " + reducer.count(data, v -> v > 50));
+        System.out.println("Histogram " + Arrays.toString(reducer.histogram(data, 1, 10, 10)));
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%n%10s %5s %12s %12s %12s %12s%n", "size", "cores", "single(us)", "fixed(us)", "stream(us)", "forkjoin(us)");
+        for (int size : new int[]{10_000, 1_000_000, 10_000_000}) {
+            int[] array = r.ints(size, 1, 101).toArray();
+            long expected = sequentialSum(array, 0, array.length);
+            for (int threads = 1; threads <= cores; threads *= 2) {
+                int poolSize = threads;
+                ForkJoinPool pool = new ForkJoinPool(poolSize);
+                ExecutorService fixedPool = Executors.newFixedThreadPool(poolSize);
+                ParallelReducer engine = new ParallelReducer(pool);
+                double single = time(expected, () -> sequentialSum(array, 0, array.length));
+                double fixed = time(expected, () -> fixedPoolSum(fixedPool, array, poolSize));
+                double stream = time(expected, () -> pool.submit(() -> IntStream.of(array).parallel().asLongStream().sum()).get());
+                double forkJoin = time(expected, () -> engine.sum(array));
+                System.out.printf("%10d %5d %12.1f %12.1f %12.1f %12.1f%n", size, threads, single, fixed, stream, forkJoin);
+                pool.shutdown();
+                fixedPool.shutdown();
+            }
+        }
     }
-}
\ No newline at end of file
+}
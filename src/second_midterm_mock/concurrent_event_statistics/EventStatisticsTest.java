@@ -1,62 +1,56 @@
 package second_midterm_mock.concurrent_event_statistics;
 
+import concurrent_stats.LatencyHistogram;
+import concurrent_stats.StatisticsAccumulator;
+import concurrent_stats.WindowedHistogram;
+
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.DoubleSummaryStatistics;
 import java.util.List;
 import java.util.Scanner;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 
 class EventStatisticsService {
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
-
-    private final DoubleSummaryStatistics cachedStats = new DoubleSummaryStatistics();
+    private final StatisticsAccumulator statistics = new StatisticsAccumulator();
+    private final LatencyHistogram durations = new LatencyHistogram();
+    private final WindowedHistogram recentDurations = new WindowedHistogram();
 
     public void addDuration(int duration) {
-        lock.writeLock().lock();
-        try {
-            cachedStats.accept(duration);
-        } finally {
-            lock.writeLock().unlock();
+        statistics.add(duration);
+        // the histograms only take non-negative values, so negative durations stay out of the percentiles
+        if (duration >= 0) {
+            durations.record(duration);
+            recentDurations.record(duration);
         }
     }
 
     public int getCount() {
-        lock.readLock().lock();
-        try {
-            return Math.toIntExact(cachedStats.getCount());
-        } finally {
-            lock.readLock().unlock();
-        }
+        return Math.toIntExact(statistics.snapshot().getCount());
     }
 
     public double getAverage() {
-        lock.readLock().lock();
-        try {
-            return cachedStats.getAverage();
-        }finally {
-            lock.readLock().unlock();
-        }
+        return statistics.snapshot().getAverage();
     }
 
     public double getMin() {
-        lock.readLock().lock();
-        try {
-            return cachedStats.getMin();
-        }finally {
-            lock.readLock().unlock();
-        }
+        StatisticsAccumulator.Snapshot snapshot = statistics.snapshot();
+        return snapshot.isEmpty() ? Double.POSITIVE_INFINITY : snapshot.getMin();
     }
 
     public double getMax() {
-        lock.readLock().lock();
-        try {
-            return cachedStats.getMax();
-        }finally {
-            lock.readLock().unlock();
-        }
+        StatisticsAccumulator.Snapshot snapshot = statistics.snapshot();
+        return snapshot.isEmpty() ? Double.NEGATIVE_INFINITY : snapshot.getMax();
+    }
+
+    // quantile of all durations, e.g. 0.99 for p99
+    public long getPercentile(double quantile) {
+        return durations.snapshot().quantile(quantile);
+    }
+
+    // quantile of the durations added within the last window (up to 15 minutes)
+    public long getPercentile(double quantile, Duration window) {
+        return recentDurations.snapshot(window).quantile(quantile);
     }
 
 }
@@ -115,6 +109,20 @@ class GetMaxTask implements Callable<String> {
         return String.format("MAX: %.2f\n", service.getMax());
     }
 }
+class GetPercentilesTask implements Callable<String> {
+    private final EventStatisticsService service;
+
+    public GetPercentilesTask(EventStatisticsService service) {
+        this.service = service;
+    }
+
+    @Override
+    public String call(){
+        return String.format("P50: %d P95: %d P99: %d (last 1 min P99: %d)",
+                service.getPercentile(0.5), service.getPercentile(0.95), service.getPercentile(0.99),
+                service.getPercentile(0.99, Duration.ofMinutes(1)));
+    }
+}
 class ConcurrentExecutor {
     public static List<Future<String>> runAll(int threads, List<Callable<String>> tasks)
             throws InterruptedException {
@@ -144,6 +152,7 @@ public class EventStatisticsTest {
             tasks.add(new GetAverageTask(service));
             tasks.add(new GetMinTask(service));
             tasks.add(new GetMaxTask(service));
+            tasks.add(new GetPercentilesTask(service));
         }
 
         List<Future<String>> results =
@@ -1,86 +1,200 @@
 package second_midterm_typa_tasks.bank;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 class BankAccount{
+    private static final AtomicLong CREATED = new AtomicLong();
+
     private final int id;
-    private double amount;
+    // ids can repeat, so lock order falls back on when the account was created
+    private final long sequence = CREATED.getAndIncrement();
+    private long cents;
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
-    public BankAccount(int id, double amount) {
+    public BankAccount(int id, long cents) {
         this.id = id;
-        this.amount = amount;
+        this.cents = cents;
     }
 
-    public boolean deposit(double amount){
+    public boolean deposit(long cents){
         lock.writeLock().lock();
         try{
-        this.amount += amount;
+            this.cents += cents;
         }finally {
             lock.writeLock().unlock();
         }
         return true;
     }
-    public boolean withdraw(double amount){
+    public boolean withdraw(long cents){
         lock.writeLock().lock();
         try{
-            if (this.amount < amount) return false;
-            this.amount -= amount;
+            if (this.cents < cents) return false;
+            this.cents -= cents;
         }finally {
             lock.writeLock().unlock();
         }
         return true;
     }
-    public double getBalance(){
+    public long getBalance(){
         lock.readLock().lock();
         try{
-            return this.amount;
+            return this.cents;
         }finally {
             lock.readLock().unlock();
         }
     }
-    public boolean transfer(BankAccount target, double amount){
-        if (lock.writeLock().tryLock()){
-            try{
-                if(target.lock.writeLock().tryLock()){
-                    try{
-                        if(this.amount >= amount){
-                            this.amount -= amount;
-                            target.amount += amount;
-                            return true;
-                        }
-                        return false;
-                    }finally {
-                        target.lock.writeLock().unlock();
-                    }
-                }
-                return false;
-            }finally {
-                lock.writeLock().unlock();
-            }
-        }
-        return false;
+    public boolean transfer(BankAccount target, long cents){
+        return TransferEngine.transfer(this, target, cents);
     }
 
     public int getId() {
         return id;
     }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    // callers must hold the write lock
+    long balanceLocked() {
+        return cents;
+    }
+
+    void addLocked(long cents) {
+        this.cents += cents;
+    }
+
+    ReadWriteLock lock() {
+        return lock;
+    }
+
+    static String format(long cents) {
+        long abs = Math.abs(cents);
+        return String.format("%s%d.%02d", cents < 0 ? "-" : "", abs / 100, abs % 100);
+    }
+}
+
+class Transfer {
+    final BankAccount from;
+    final BankAccount to;
+    final long cents;
+
+    Transfer(BankAccount from, BankAccount to, long cents) {
+        if (from == to) throw new IllegalArgumentException("Cannot transfer to the same account: " + from.getId());
+        if (cents <= 0) throw new IllegalArgumentException("Amount must be positive: " + cents);
+        this.from = from;
+        this.to = to;
+        this.cents = cents;
+    }
+}
+
+/**
+ * Atomic transfers between accounts. Every operation write-locks all the accounts it touches
+ * in increasing id order, and by creation among equal ids, so two operations can never wait
+ * on each other in a cycle.
+ */
+class TransferEngine {
+    private TransferEngine() {
+    }
+
+    /**
+     * Moves the amount if the sender can cover it. A transfer to the same account or of
+     * no positive amount is declined.
+     */
+    public static boolean transfer(BankAccount from, BankAccount to, long cents) {
+        if (from == to || cents <= 0) return false;
+        return transferAll(List.of(new Transfer(from, to, cents)));
+    }
+
+    /**
+     * Applies the legs in order, all or nothing: if any leg would overdraw its account,
+     * none of them take effect.
+     */
+    public static boolean transferAll(List<Transfer> legs) {
+        List<BankAccount> accounts = new ArrayList<>();
+        for (Transfer leg : legs) {
+            accounts.add(leg.from);
+            accounts.add(leg.to);
+        }
+        List<Lock> locks = lockInOrder(accounts, true);
+        try {
+            int applied = 0;
+            for (; applied < legs.size(); applied++) {
+                Transfer leg = legs.get(applied);
+                if (leg.from.balanceLocked() < leg.cents) break;
+                leg.from.addLocked(-leg.cents);
+                leg.to.addLocked(leg.cents);
+            }
+            if (applied == legs.size()) return true;
+            for (int i = applied - 1; i >= 0; i--) {
+                Transfer leg = legs.get(i);
+                leg.to.addLocked(-leg.cents);
+                leg.from.addLocked(leg.cents);
+            }
+            return false;
+        } finally {
+            unlock(locks);
+        }
+    }
+
+    /**
+     * Sum of the balances at a single point in time, with no transfer half applied.
+     */
+    public static long totalBalance(List<BankAccount> accounts) {
+        List<Lock> locks = lockInOrder(accounts, false);
+        try {
+            long total = 0;
+            for (BankAccount account : accounts) total += account.balanceLocked();
+            return total;
+        } finally {
+            unlock(locks);
+        }
+    }
+
+    private static List<Lock> lockInOrder(List<BankAccount> accounts, boolean write) {
+        List<BankAccount> sorted = new ArrayList<>(accounts);
+        sorted.sort(Comparator.comparingInt(BankAccount::getId).thenComparingLong(BankAccount::getSequence));
+        List<Lock> locks = new ArrayList<>(sorted.size());
+        BankAccount previous = null;
+        for (BankAccount account : sorted) {
+            // an account that appears in several legs is locked once; the order puts its copies together
+            if (account == previous) continue;
+            previous = account;
+            Lock lock = write ? account.lock().writeLock() : account.lock().readLock();
+            lock.lock();
+            locks.add(lock);
+        }
+        return locks;
+    }
+
+    private static void unlock(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) locks.get(i).unlock();
+    }
 }
 class TransferTask implements Callable<String>{
     private final BankAccount fromAccount;
     private final BankAccount toAccount;
-    private final double amount;
+    private final long amount;
 
-    public TransferTask(BankAccount fromAccount, BankAccount toAccount, double amount) {
+    public TransferTask(BankAccount fromAccount, BankAccount toAccount, long amount) {
         this.fromAccount = fromAccount;
         this.toAccount = toAccount;
         this.amount = amount;
@@ -91,8 +205,8 @@ class TransferTask implements Callable<String>{
     }
     @Override
     public String call() throws Exception {
-        return String.format("TRANSFER %.2f from Account-%d to Account-%d. Result: %s"
-                ,amount, fromAccount.getId(), toAccount.getId(), success());
+        return String.format("TRANSFER %s from Account-%d to Account-%d. Result: %s"
+                ,BankAccount.format(amount), fromAccount.getId(), toAccount.getId(), success());
     }
 }
 class BalanceCheckTask implements Callable<String>{
@@ -104,9 +218,132 @@ class BalanceCheckTask implements Callable<String>{
 
     @Override
     public String call() throws Exception {
-        return String.format("Account-%d balance: %.2f",account.getId(), account.getBalance());
+        return String.format("Account-%d balance: %s",account.getId(), BankAccount.format(account.getBalance()));
+    }
+}
+class BankStressTest {
+    private static final int ACCOUNTS = 1_000;
+    private static final int HOT_ACCOUNTS = 10;
+    private static final long INITIAL_CENTS = 100_000;
+    private static final long RUN_MILLIS = 2_000;
+
+    static int pick(ThreadLocalRandom random) {
+        return random.nextBoolean() ? random.nextInt(HOT_ACCOUNTS) : random.nextInt(ACCOUNTS);
+    }
+
+    // half the senders and receivers are one of a few hot accounts, one in ten is a batch of 2 to 4 legs
+    static List<Transfer> randomLegs(List<BankAccount> accounts, ThreadLocalRandom random) {
+        int legs = random.nextInt(10) == 0 ? 2 + random.nextInt(3) : 1;
+        List<Transfer> transfers = new ArrayList<>(legs);
+        for (int i = 0; i < legs; i++) {
+            int from = pick(random);
+            int to = pick(random);
+            while (to == from) to = pick(random);
+            transfers.add(new Transfer(accounts.get(from), accounts.get(to), 1 + random.nextInt(20_000)));
+        }
+        return transfers;
+    }
+
+    static void run(int threads) throws InterruptedException, ExecutionException {
+        List<BankAccount> accounts = new ArrayList<>(ACCOUNTS);
+        for (int i = 0; i < ACCOUNTS; i++) accounts.add(new BankAccount(i, INITIAL_CENTS));
+        long expectedTotal = ACCOUNTS * INITIAL_CENTS;
+
+        LongAdder succeeded = new LongAdder();
+        LongAdder declined = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            tasks.add(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (!stop.get()) {
+                    List<Transfer> legs = randomLegs(accounts, random);
+                    boolean ok = legs.size() == 1
+                            ? legs.get(0).from.transfer(legs.get(0).to, legs.get(0).cents)
+                            : TransferEngine.transferAll(legs);
+                    if (ok) succeeded.increment();
+                    else declined.increment();
+                }
+                return 0L;
+            });
+        }
+        // the auditor sees a consistent total while transfers are running
+        tasks.add(() -> {
+            long audits = 0;
+            while (!stop.get()) {
+                long total = TransferEngine.totalBalance(accounts);
+                if (total != expectedTotal)
+                    throw new RuntimeException("ERROR: Total was " + total + " during the run, expected " + expectedTotal);
+                audits++;
+                Thread.sleep(10);
+            }
+            return audits;
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        long audits = 0;
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (Callable<Long> task : tasks) futures.add(executor.submit(task));
+            Thread.sleep(RUN_MILLIS);
+            stop.set(true);
+            for (Future<Long> f : futures) audits += f.get(30, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            throw new RuntimeException("ERROR: Transfers did not finish, possible deadlock");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long total = 0;
+        for (BankAccount account : accounts) {
+            if (account.getBalance() < 0) throw new RuntimeException("ERROR: Account-" + account.getId() + " is overdrawn");
+            total += account.getBalance();
+        }
+        if (total != expectedTotal) throw new RuntimeException("ERROR: Total is " + total + ", expected " + expectedTotal);
+        System.out.printf("%3d threads %,12.0f transfers/s   declined %5.1f%%   audits %,5d   total preserved%n",
+                threads, succeeded.sum() * 1000.0 / RUN_MILLIS,
+                100.0 * declined.sum() / Math.max(1, succeeded.sum() + declined.sum()), audits);
+    }
+
+    // accounts that share an id, moving money both ways, must not lock each other out
+    static void checkSharedIds() throws Exception {
+        BankAccount a = new BankAccount(7, INITIAL_CENTS);
+        BankAccount b = new BankAccount(7, INITIAL_CENTS);
+        if (a.transfer(a, 1) || a.transfer(b, 0) || a.transfer(b, -1))
+            throw new RuntimeException("ERROR: A transfer to the same account or of no positive amount went through");
+        List<Transfer> backAndForth = List.of(new Transfer(a, b, 1), new Transfer(b, a, 1), new Transfer(a, b, 1));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 200_000; i++) a.transfer(b, 1);
+                return null;
+            }));
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 200_000; i++) {
+                    b.transfer(a, 1);
+                    TransferEngine.transferAll(backAndForth);
+                }
+                return null;
+            }));
+            for (Future<Object> f : futures) f.get(30, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            throw new RuntimeException("ERROR: Accounts with the same id deadlocked");
+        } finally {
+            executor.shutdownNow();
+        }
+        if (a.getBalance() + b.getBalance() != 2 * INITIAL_CENTS)
+            throw new RuntimeException("ERROR: Accounts with the same id lost money");
+    }
+
+    public static void main(String[] args) throws Exception {
+        checkSharedIds();
+        for (int threads = 1; threads <= 32; threads *= 2) {
+            run(threads);
+        }
     }
 }
+
 class BankAccountMain {
     public static void main(String[] args) throws Exception {
         Scanner sc = new Scanner(System.in);
@@ -117,13 +354,11 @@ class BankAccountMain {
         // Create accounts with initial balance
         List<BankAccount> accounts = new ArrayList<>();
         for (int i = 0; i < numAccounts; i++) {
-            accounts.add(new BankAccount(i, 1000.0));
+            accounts.add(new BankAccount(i, 100_000));
         }
 
         // Calculate initial total
-        double initialTotal = accounts.stream()
-                .mapToDouble(BankAccount::getBalance)
-                .sum();
+        long initialTotal = TransferEngine.totalBalance(accounts);
 
         List<Callable<String>> tasks = new ArrayList<>();
         Random random = new Random();
@@ -135,7 +370,7 @@ class BankAccountMain {
             while (to == from) {
                 to = random.nextInt(numAccounts);
             }
-            double amount = random.nextDouble() * 100;
+            long amount = 1 + random.nextInt(10_000);
             tasks.add(new TransferTask(accounts.get(from), accounts.get(to), amount));
         }
 
@@ -155,11 +390,9 @@ class BankAccountMain {
         }
 
         // Verify total balance unchanged
-        double finalTotal = accounts.stream()
-                .mapToDouble(BankAccount::getBalance)
-                .sum();
+        long finalTotal = TransferEngine.totalBalance(accounts);
 
-        if (Math.abs(initialTotal - finalTotal) < 0.01) {
+        if (initialTotal == finalTotal) {
             System.out.println("✔ TOTAL BALANCE PRESERVED");
         } else {
             System.out.println("✗ ERROR: Money lost or created!");
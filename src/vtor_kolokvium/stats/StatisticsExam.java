@@ -1,65 +1,33 @@
 package vtor_kolokvium.stats;
 
+import concurrent_stats.StatisticsAccumulator;
+
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 class StatisticsService {
-    private int count = 0;
-    private long sum = 0;
-    private Integer min = null;
-    private Integer max = null;
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final StatisticsAccumulator statistics = new StatisticsAccumulator();
 
     public void addNumber(int number) {
-        lock.writeLock().lock();
-        try {
-            count++;
-            sum += number;
-            if (min == null || min > number) min = number;
-            if (max == null || max < number) max = number;
-        }finally {
-            lock.writeLock().unlock();
-        }
+        statistics.add(number);
     }
 
     public int getCount() {
-        lock.readLock().lock();
-        try{
-        return count;
-        }finally {
-            lock.readLock().unlock();
-        }
+        return Math.toIntExact(statistics.snapshot().getCount());
     }
 
     public Double getAverage() {
-        lock.readLock().lock();
-        try {
-            return count == 0 ? 0.0 : (double) sum / count;
-        }finally {
-            {
-                lock.readLock().unlock();
-            }
-        }
+        return statistics.snapshot().getAverage();
     }
 
     public Double getMin() {
-        lock.readLock().lock();
-        try {
-            return min == null ? 0.0 : min;
-        }finally {
-            lock.readLock().unlock();
-        }
+        StatisticsAccumulator.Snapshot snapshot = statistics.snapshot();
+        return snapshot.isEmpty() ? 0.0 : (double) snapshot.getMin();
     }
 
     public Double getMax() {
-        lock.readLock().lock();
-        try {
-            return max == null ? 0.0 : max;
-        }finally {
-            lock.readLock().unlock();
-        }
+        StatisticsAccumulator.Snapshot snapshot = statistics.snapshot();
+        return snapshot.isEmpty() ? 0.0 : (double) snapshot.getMax();
     }
 }
 